@@ -0,0 +1,15 @@
+package pl.pateman.dynamicaabbtree;
+
+import org.joml.Vector3fc;
+
+/**
+ * Measures the distance between a point and the object's AABB.
+ */
+public class AABBDistanceFunction<T extends Boundable & Identifiable> implements DistanceFunction<T>
+{
+   @Override
+   public float getDistance(T object, Vector3fc point)
+   {
+      return (float) Math.sqrt(AABBUtils.getDistanceSquared(object.getAABB(QueryContext.get().aabb), point));
+   }
+}
@@ -0,0 +1,16 @@
+package pl.pateman.dynamicaabbtree;
+
+import org.joml.Rayf;
+
+/**
+ * Treats the object's AABB as its shape, so the ray hits the object where it enters its AABB.
+ */
+public class AABBRayCastCallback<T extends Boundable & Identifiable> implements RayCastCallback<T>
+{
+   @Override
+   public float rayCast(T object, Rayf ray, float maxDistance)
+   {
+      float distance = AABBUtils.getRayEntryDistance(object.getAABB(QueryContext.get().aabb), ray);
+      return distance == Float.POSITIVE_INFINITY ? -1.0f : distance;
+   }
+}
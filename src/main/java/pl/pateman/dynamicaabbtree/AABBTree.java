@@ -2,10 +2,27 @@ package pl.pateman.dynamicaabbtree;
 
 import org.joml.*;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
 import java.util.*;
-import java.util.function.Predicate;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.function.LongFunction;
 
+import static java.lang.Math.abs;
 import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static pl.pateman.dynamicaabbtree.AABBUtils.containsAABB;
+import static pl.pateman.dynamicaabbtree.AABBUtils.expand;
+import static pl.pateman.dynamicaabbtree.AABBUtils.extend;
+import static pl.pateman.dynamicaabbtree.AABBUtils.getArea;
+import static pl.pateman.dynamicaabbtree.AABBUtils.getDistanceSquared;
+import static pl.pateman.dynamicaabbtree.AABBUtils.getRayEntryDistance;
 
 /**
  * Created by pateman.
@@ -13,18 +30,41 @@ import static java.lang.Math.max;
 public final class AABBTree<T extends Boundable & Identifiable> {
 
     public static final float DEFAULT_FAT_AABB_MARGIN = 0.2f;
+    private static final float OVERSIZED_FAT_AABB_MARGIN_MULTIPLIER = 4.0f;
 
-    private final List<AABBTreeNode<T>> nodes;
+    private static final int STREAM_MAGIC = 0x41414254;
+    private static final int STREAM_VERSION = 1;
+    private static final byte FREE_NODE = 0;
+    private static final byte BRANCH_NODE = 1;
+    private static final byte LEAF_NODE = 2;
+    private static final byte MOVED_LEAF_NODE = 3;
+    private static final int READ_CHUNK_SIZE = 1 << 16;
+
+    private final ArrayList<AABBTreeNode<T>> nodes;
     private final AABBTreeHeuristicFunction<T> insertionHeuristicFunction;
     private final AABBOverlapFilter<T> defaultAABBOverlapFilter;
     private final CollisionFilter<T> defaultCollisionFilter;
-    private final Map<AABBTreeObject<T>, Integer> objects;
-    private final Deque<Integer> freeNodes;
-    private final FrustumIntersection frustumIntersection;
-    private final RayAabIntersection rayIntersection;
+    private final DistanceFunction<T> defaultDistanceFunction;
+    private final RayCastCallback<T> defaultRayCastCallback;
+    private LongIntHashMap objects;
+    private IntStack freeNodes;
+    private final AABBf updateAABB;
+    private final AABBf predictedAABB;
+    private final AABBf rotationAABB;
+    private final IntStack moveBuffer;
+    private final IntStack refitOrder;
 
     private int root;
     private float fatAABBMargin;
+    private long skippedUpdateCount;
+    private long reinsertedUpdateCount;
+    private boolean moveTrackingEnabled;
+    private int optimizationCursor;
+    private int modificationCount;
+    private int snapshotModificationCount;
+    private AABBTreeSnapshot<T> snapshot;
+    // The pages of the snapshot holding nodes which were changed since it was made.
+    private final BitSet changedSnapshotPages;
 
     public AABBTree() {
         this(new AreaAABBHeuristicFunction<>(), DEFAULT_FAT_AABB_MARGIN);
@@ -37,29 +77,36 @@ public final class AABBTree<T extends Boundable & Identifiable> {
         if (this.insertionHeuristicFunction == null) {
             throw new IllegalArgumentException("A valid insertion heuristic function is required");
         }
-        objects = new HashMap<>();
-        freeNodes = new ArrayDeque<>();
+        objects = new LongIntHashMap();
+        freeNodes = new IntStack();
         defaultAABBOverlapFilter = new DefaultAABBOverlapFilter<>();
         defaultCollisionFilter = new DefaultCollisionFilter<>();
+        defaultDistanceFunction = new AABBDistanceFunction<>();
+        defaultRayCastCallback = new AABBRayCastCallback<>();
         this.fatAABBMargin = fatAABBMargin;
 
-        frustumIntersection = new FrustumIntersection();
-        rayIntersection = new RayAabIntersection();
+        updateAABB = new AABBf();
+        predictedAABB = new AABBf();
+        rotationAABB = new AABBf();
+        moveBuffer = new IntStack();
+        refitOrder = new IntStack();
+        changedSnapshotPages = new BitSet();
     }
 
     private AABBTreeNode<T> allocateNode() {
         if (freeNodes.isEmpty()) {
             return new AABBTreeNode<>();
         }
-        Integer freeIndex = freeNodes.pop();
-
-        AABBTreeNode<T> aabbTreeNode = nodes.get(freeIndex);
+        AABBTreeNode<T> aabbTreeNode = nodes.get(freeNodes.pop());
         aabbTreeNode.resetForReuse();
         return aabbTreeNode;
     }
 
     private void deallocateNode(AABBTreeNode<T> node) {
-        freeNodes.offer(node.getIndex());
+        // Free nodes have no children, so scanning the node list never mistakes them for live branches.
+        node.resetForReuse();
+        // The free list is a stack, so the most recently released node, which is likely still cached, is reused first.
+        freeNodes.push(node.getIndex());
     }
 
     private int addNodeAndGetIndex(AABBTreeNode<T> node) {
@@ -72,13 +119,28 @@ public final class AABBTree<T extends Boundable & Identifiable> {
         return idx;
     }
 
-    private AABBTreeNode<T> createLeafNode(T object) {
+    private AABBTreeNode<T> createLeafNode(T object, Vector3fc displacement) {
         AABBTreeNode<T> leafNode = allocateNode();
         leafNode.setData(object);
-        leafNode.computeAABBWithMargin(fatAABBMargin);
+        if (displacement == null) {
+            leafNode.computeAABBWithMargin(fatAABBMargin);
+        } else {
+            leafNode.computeAABBWithMargin(fatAABBMargin, displacement);
+        }
         return leafNode;
     }
 
+    private boolean isFatAABBOversized(AABBf fatAABB, AABBf objectAABB, Vector3fc displacement) {
+        // The fat AABB may lag behind the object by one displacement, so the slack is applied to both sides.
+        float dx = abs(displacement.x());
+        float dy = abs(displacement.y());
+        float dz = abs(displacement.z());
+        predictedAABB.setMin(objectAABB.minX - dx, objectAABB.minY - dy, objectAABB.minZ - dz);
+        predictedAABB.setMax(objectAABB.maxX + dx, objectAABB.maxY + dy, objectAABB.maxZ + dz);
+        extend(expand(predictedAABB, fatAABBMargin * OVERSIZED_FAT_AABB_MARGIN_MULTIPLIER), displacement);
+        return !containsAABB(predictedAABB, fatAABB);
+    }
+
     private void moveNodeToParent(AABBTreeNode<T> node, int newParentIndex) {
         int oldParentIndex = node.getParent();
         if (oldParentIndex != AABBTreeNode.INVALID_NODE_INDEX) {
@@ -102,6 +164,21 @@ public final class AABBTree<T extends Boundable & Identifiable> {
         return nodes.get(index);
     }
 
+    private void markChanged(AABBTreeNode<T> node) {
+        if (snapshot != null) {
+            changedSnapshotPages.set(node.getIndex() >>> AABBTreeSnapshot.PAGE_SHIFT);
+        }
+    }
+
+    /**
+     * Makes the next snapshot copy every node instead of sharing the unchanged ones with the current snapshot. Used by
+     * operations which change most of the nodes anyway.
+     */
+    private void discardSnapshotPages() {
+        snapshot = null;
+        changedSnapshotPages.clear();
+    }
+
     private AABBTreeNode<T> balanceRight(AABBTreeNode<T> node, AABBTreeNode<T> left, AABBTreeNode<T> right) {
         AABBTreeNode<T> rightLeftChild = getNodeAt(right.getLeftChild());
         AABBTreeNode<T> rightRightChild = getNodeAt(right.getRightChild());
@@ -208,6 +285,10 @@ public final class AABBTree<T extends Boundable & Identifiable> {
 
             AABBTreeNode<T> left = getNodeAt(node.getLeftChild());
             AABBTreeNode<T> right = getNodeAt(node.getRightChild());
+            // A rotation only changes the node and its children, while its former parent is visited next.
+            markChanged(node);
+            markChanged(left);
+            markChanged(right);
 
             node.setHeight(1 + max(left.getHeight(), right.getHeight()));
             left.getAABB().union(right.getAABB(), node.getAABB());
@@ -246,78 +327,499 @@ public final class AABBTree<T extends Boundable & Identifiable> {
         syncUpHierarchy(nodeToAdd);
     }
 
-    private void detectCollisionPairsWithNode(AABBTreeNode<T> nodeToTest, CollisionFilter<T> filter, Set<CollisionPair<T>> alreadyTested,
-                                              List<CollisionPair<T>> result) {
-        Deque<Integer> stack = new ArrayDeque<>();
-        stack.offer(root);
-        AABBf overlapWith = nodeToTest.getAABB();
+    /**
+     * Improves the quality of the tree by rotating its nodes, in the spirit of Kensler's tree rotations. Up to
+     * {@code budget} nodes are visited, resuming where the previous call stopped, so the method can be called once per
+     * frame. Every visited branch has one of its children swapped with a grandchild, if that decreases the surface area
+     * of the tree without making it deeper. Returns the number of performed rotations.
+     */
+    public int optimize(int budget) {
+        int rotationCount = 0;
+        for (int i = 0; i < budget && !nodes.isEmpty(); i++) {
+            if (optimizationCursor >= nodes.size()) {
+                optimizationCursor = 0;
+            }
+            AABBTreeNode<T> node = getNodeAt(optimizationCursor++);
+            if (!node.isLeaf() && rotateNode(node)) {
+                rotationCount++;
+            }
+        }
+        return rotationCount;
+    }
 
-        while (!stack.isEmpty()) {
-            Integer nodeIndex = stack.pop();
-            if (nodeIndex == AABBTreeNode.INVALID_NODE_INDEX) {
+    private boolean rotateNode(AABBTreeNode<T> node) {
+        AABBTreeNode<T> left = getNodeAt(node.getLeftChild());
+        AABBTreeNode<T> right = getNodeAt(node.getRightChild());
+
+        AABBTreeNode<T> bestChild = null;
+        AABBTreeNode<T> bestSibling = null;
+        int bestGrandchild = AABBTreeNode.INVALID_NODE_INDEX;
+        float bestAreaChange = 0.0f;
+        for (int side = AABBTreeNode.LEFT_CHILD; side <= AABBTreeNode.RIGHT_CHILD; side++) {
+            AABBTreeNode<T> child = side == AABBTreeNode.LEFT_CHILD ? left : right;
+            AABBTreeNode<T> sibling = side == AABBTreeNode.LEFT_CHILD ? right : left;
+            if (sibling.isLeaf()) {
                 continue;
             }
 
-            AABBTreeNode<T> node = getNodeAt(nodeIndex);
-            AABBf nodeAABB = node.getAABB();
-            if (nodeAABB.testAABB(overlapWith)) {
-                if (node.isLeaf() && node.getIndex() != nodeToTest.getIndex()) {
-                    T nodeData = node.getData();
-                    T testedData = nodeToTest.getData();
-                    CollisionPair<T> collisionPair = new CollisionPair<>(testedData, nodeData);
-                    if (filter.test(testedData, nodeData) && !alreadyTested.contains(collisionPair)) {
-                        alreadyTested.add(collisionPair);
-                        result.add(collisionPair);
-                    }
-                } else {
-                    stack.offer(node.getLeftChild());
-                    stack.offer(node.getRightChild());
+            // Swapping the child with one of its sibling's children only changes the area of the sibling.
+            float siblingArea = getArea(sibling.getAABB());
+            for (int grandchild = AABBTreeNode.LEFT_CHILD; grandchild <= AABBTreeNode.RIGHT_CHILD; grandchild++) {
+                AABBTreeNode<T> swapped = getNodeAt(sibling.getChild(grandchild));
+                AABBTreeNode<T> remaining = getNodeAt(sibling.getChild(1 - grandchild));
+                float areaChange = getArea(child.getAABB().union(remaining.getAABB(), rotationAABB)) - siblingArea;
+                int height = 1 + max(swapped.getHeight(), 1 + max(child.getHeight(), remaining.getHeight()));
+                if (areaChange < bestAreaChange && height <= node.getHeight()) {
+                    bestAreaChange = areaChange;
+                    bestChild = child;
+                    bestSibling = sibling;
+                    bestGrandchild = grandchild;
                 }
             }
         }
+
+        if (bestChild == null) {
+            return false;
+        }
+
+        modificationCount++;
+        AABBTreeNode<T> swapped = getNodeAt(bestSibling.getChild(bestGrandchild));
+        node.replaceChild(bestChild.getIndex(), swapped.getIndex());
+        swapped.setParent(node.getIndex());
+        bestSibling.assignChild(bestGrandchild, bestChild.getIndex());
+        bestChild.setParent(bestSibling.getIndex());
+        markChanged(node);
+        markChanged(bestSibling);
+
+        AABBTreeNode<T> siblingLeft = getNodeAt(bestSibling.getLeftChild());
+        AABBTreeNode<T> siblingRight = getNodeAt(bestSibling.getRightChild());
+        siblingLeft.getAABB().union(siblingRight.getAABB(), bestSibling.getAABB());
+        bestSibling.setHeight(1 + max(siblingLeft.getHeight(), siblingRight.getHeight()));
+
+        // The rotation may have made the node shallower, which has to be reflected in its ancestors.
+        AABBTreeNode<T> ancestor = node;
+        while (ancestor != null) {
+            int height = 1 + max(getNodeAt(ancestor.getLeftChild()).getHeight(), getNodeAt(ancestor.getRightChild()).getHeight());
+            if (height == ancestor.getHeight()) {
+                break;
+            }
+            ancestor.setHeight(height);
+            ancestor = ancestor.getParent() == AABBTreeNode.INVALID_NODE_INDEX ? null : getNodeAt(ancestor.getParent());
+        }
+        return true;
+    }
+
+    /**
+     * Returns the surface area heuristic cost of the tree, which is the sum of the areas of all branches divided by the
+     * area of the root. Lower values mean that queries have to visit fewer nodes.
+     */
+    public float getTotalSAHCost() {
+        if (root == AABBTreeNode.INVALID_NODE_INDEX) {
+            return 0.0f;
+        }
+        float rootArea = getArea(getNodeAt(root).getAABB());
+        if (rootArea <= 0.0f) {
+            return 0.0f;
+        }
+
+        float branchArea = 0.0f;
+        IntStack stack = QueryContext.get().stack;
+        int stackBase = stack.size();
+        stack.push(root);
+        while (stack.size() > stackBase) {
+            AABBTreeNode<T> node = getNodeAt(stack.pop());
+            if (!node.isLeaf()) {
+                branchArea += getArea(node.getAABB());
+                stack.push(node.getLeftChild());
+                stack.push(node.getRightChild());
+            }
+        }
+        return branchArea / rootArea;
     }
 
     public void add(T object) {
-        if (contains(object)) {
-            update(object);
+        addObject(object, null);
+    }
+
+    private void addObject(T object, Vector3fc displacement) {
+        int objectNodeIndex = objects.get(object.getID());
+        if (objectNodeIndex != LongIntHashMap.NO_VALUE) {
+            updateObject(object, objectNodeIndex, displacement);
             return;
         }
 
-        AABBTreeNode<T> leafNode = createLeafNode(object);
+        objects.put(object.getID(), insertLeaf(object, displacement));
+    }
+
+    private int insertLeaf(T object, Vector3fc displacement) {
+        modificationCount++;
+        AABBTreeNode<T> leafNode = createLeafNode(object, displacement);
 
         int newNodeIndex = addNodeAndGetIndex(leafNode);
+        markChanged(leafNode);
         if (root == AABBTreeNode.INVALID_NODE_INDEX) {
             root = newNodeIndex;
         } else {
             insertNode(newNodeIndex);
         }
 
-        objects.put(AABBTreeObject.create(object), newNodeIndex);
+        markMoved(leafNode);
+        return newNodeIndex;
+    }
+
+    /**
+     * Adds all objects at once. Objects that are already in the tree are updated. The hierarchy over the new and the
+     * existing objects is then built from scratch, top-down, using the binned surface area heuristic, which is faster
+     * than adding the objects one by one and usually yields a better tree.
+     */
+    public void addAll(Collection<? extends T> objectsToAdd) {
+        addAll(objectsToAdd, null);
+    }
+
+    /**
+     * Works like {@link #addAll(Collection)}, but builds the subtrees of large hierarchies in parallel using the given
+     * pool. The resulting tree doesn't depend on the pool's parallelism.
+     */
+    public void addAll(Collection<? extends T> objectsToAdd, ForkJoinPool pool) {
+        IntStack newLeaves = new IntStack(objectsToAdd.size());
+        for (T object : objectsToAdd) {
+            int objectNodeIndex = objects.get(object.getID());
+            if (objectNodeIndex != LongIntHashMap.NO_VALUE) {
+                AABBTreeNode<T> objectNode = getNodeAt(objectNodeIndex);
+                if (objectNodeIndex != root && objectNode.getParent() == AABBTreeNode.INVALID_NODE_INDEX) {
+                    // The ID was already added earlier in this batch, and its leaf isn't linked yet.
+                    objectNode.setData(object);
+                    objectNode.computeAABBWithMargin(fatAABBMargin);
+                } else {
+                    updateObject(object, objectNodeIndex, null);
+                }
+                continue;
+            }
+
+            // New leaves are linked into the hierarchy by the rebuild below.
+            AABBTreeNode<T> leafNode = createLeafNode(object, null);
+            int newNodeIndex = addNodeAndGetIndex(leafNode);
+            objects.put(object.getID(), newNodeIndex);
+            newLeaves.push(newNodeIndex);
+            markMoved(leafNode);
+        }
+
+        rebuildHierarchy(newLeaves, pool);
+    }
+
+    /**
+     * Recomputes the fat AABBs of all objects which no longer fit in them and then the AABBs of all branches, bottom-up,
+     * without changing the structure of the tree. When most objects moved only a little, this is much cheaper than
+     * updating them one by one.
+     */
+    public void refit() {
+        refitLeaves();
+        refitHierarchy();
+    }
+
+    /**
+     * Recomputes the AABBs of all branches from the AABBs of the leaves.
+     */
+    void refitHierarchy() {
+        modificationCount++;
+        discardSnapshotPages();
+        if (root == AABBTreeNode.INVALID_NODE_INDEX) {
+            return;
+        }
+
+        // In reversed pre-order every node is visited after its children.
+        IntStack stack = QueryContext.get().stack;
+        int stackBase = stack.size();
+        stack.push(root);
+        while (stack.size() > stackBase) {
+            int nodeIndex = stack.pop();
+            refitOrder.push(nodeIndex);
+            AABBTreeNode<T> node = getNodeAt(nodeIndex);
+            if (!node.isLeaf()) {
+                stack.push(node.getLeftChild());
+                stack.push(node.getRightChild());
+            }
+        }
+        while (!refitOrder.isEmpty()) {
+            AABBTreeNode<T> node = getNodeAt(refitOrder.pop());
+            if (!node.isLeaf()) {
+                getNodeAt(node.getLeftChild()).getAABB().union(getNodeAt(node.getRightChild()).getAABB(), node.getAABB());
+            }
+        }
+    }
+
+    /**
+     * Recomputes the fat AABBs of all objects which no longer fit in them and builds the hierarchy from scratch, like
+     * {@link #addAll(Collection)}.
+     */
+    public void rebuild() {
+        rebuild(null);
+    }
+
+    /**
+     * Works like {@link #rebuild()}, but builds the subtrees of large hierarchies in parallel using the given pool.
+     */
+    public void rebuild(ForkJoinPool pool) {
+        refitLeaves();
+        rebuildHierarchy(new IntStack(1), pool);
+    }
+
+    /**
+     * Renumbers the live nodes in depth-first order and releases the memory held by the free nodes. After many objects
+     * have been removed, the live nodes end up scattered across a mostly free node list, so compacting it makes
+     * traversals walk the memory front to back again. The hierarchy itself is left unchanged.
+     */
+    public void compact() {
+        int liveNodeCount = nodes.size() - freeNodes.size();
+        ArrayList<AABBTreeNode<T>> orderedNodes = new ArrayList<>(liveNodeCount);
+        if (root != AABBTreeNode.INVALID_NODE_INDEX) {
+            // Right children are pushed first, so left children directly follow their parents.
+            IntStack stack = QueryContext.get().stack;
+            int stackBase = stack.size();
+            stack.push(root);
+            while (stack.size() > stackBase) {
+                AABBTreeNode<T> node = getNodeAt(stack.pop());
+                orderedNodes.add(node);
+                if (!node.isLeaf()) {
+                    stack.push(node.getRightChild());
+                    stack.push(node.getLeftChild());
+                }
+            }
+        }
+
+        int[] newIndices = new int[nodes.size()];
+        Arrays.fill(newIndices, AABBTreeNode.INVALID_NODE_INDEX);
+        for (int i = 0; i < orderedNodes.size(); i++) {
+            newIndices[orderedNodes.get(i).getIndex()] = i;
+        }
+        objects = new LongIntHashMap(orderedNodes.size() / 2 + 1);
+        for (int i = 0; i < orderedNodes.size(); i++) {
+            AABBTreeNode<T> node = orderedNodes.get(i);
+            node.setIndex(i);
+            if (node.getParent() != AABBTreeNode.INVALID_NODE_INDEX) {
+                node.setParent(newIndices[node.getParent()]);
+            }
+            if (node.isLeaf()) {
+                objects.put(node.getData().getID(), i);
+            } else {
+                node.assignChildren(newIndices[node.getLeftChild()], newIndices[node.getRightChild()]);
+            }
+        }
+        // Moves of nodes that were freed since, or reused as branches, are dropped.
+        int movedNodeCount = 0;
+        for (int i = 0; i < moveBuffer.size(); i++) {
+            AABBTreeNode<T> movedNode = getNodeAt(moveBuffer.get(i));
+            if (newIndices[moveBuffer.get(i)] != AABBTreeNode.INVALID_NODE_INDEX && movedNode.isMoved()) {
+                moveBuffer.set(movedNodeCount++, newIndices[moveBuffer.get(i)]);
+            } else {
+                movedNode.setMoved(false);
+                movedNode.setQueued(false);
+            }
+        }
+        moveBuffer.truncate(movedNodeCount);
+
+        nodes.clear();
+        nodes.addAll(orderedNodes);
+        nodes.trimToSize();
+        discardSnapshotPages();
+        freeNodes = new IntStack();
+        root = orderedNodes.isEmpty() ? AABBTreeNode.INVALID_NODE_INDEX : 0;
+        optimizationCursor = 0;
+    }
+
+    private void refitLeaves() {
+        // Free nodes are reset, so every node that holds an object is a live leaf.
+        for (int i = 0; i < nodes.size(); i++) {
+            AABBTreeNode<T> node = nodes.get(i);
+            if (node.getData() == null) {
+                continue;
+            }
+            // Like single updates, objects which still fit keep their fat AABBs, including any predicted displacement.
+            if (containsAABB(node.getAABB(), node.getData().getAABB(updateAABB))) {
+                continue;
+            }
+            node.computeAABBWithMargin(fatAABBMargin);
+            markMoved(node);
+        }
+    }
+
+    private void rebuildHierarchy(IntStack unlinkedLeaves, ForkJoinPool pool) {
+        modificationCount++;
+        discardSnapshotPages();
+        int leafCount = objects.size();
+        int[] leaves = new int[leafCount];
+        int leafIndex = 0;
+        for (int i = 0; i < unlinkedLeaves.size(); i++) {
+            leaves[leafIndex++] = unlinkedLeaves.get(i);
+        }
+
+        // Keep the leaves of the current hierarchy and release all of its branches.
+        if (root != AABBTreeNode.INVALID_NODE_INDEX) {
+            IntStack stack = QueryContext.get().stack;
+            int stackBase = stack.size();
+            stack.push(root);
+            while (stack.size() > stackBase) {
+                AABBTreeNode<T> node = getNodeAt(stack.pop());
+                if (node.isLeaf()) {
+                    leaves[leafIndex++] = node.getIndex();
+                } else {
+                    stack.push(node.getLeftChild());
+                    stack.push(node.getRightChild());
+                    deallocateNode(node);
+                }
+            }
+        }
+        root = AABBTreeNode.INVALID_NODE_INDEX;
+        if (leafCount == 0) {
+            return;
+        }
+
+        float[] leafBounds = new float[leafCount * AABBTreeBuilder.BOUNDS_STRIDE];
+        for (int i = 0; i < leafCount; i++) {
+            AABBf aabb = getNodeAt(leaves[i]).getAABB();
+            int offset = i * AABBTreeBuilder.BOUNDS_STRIDE;
+            leafBounds[offset] = aabb.minX;
+            leafBounds[offset + 1] = aabb.minY;
+            leafBounds[offset + 2] = aabb.minZ;
+            leafBounds[offset + 3] = aabb.maxX;
+            leafBounds[offset + 4] = aabb.maxY;
+            leafBounds[offset + 5] = aabb.maxZ;
+        }
+
+        AABBTreeBuilder builder = new AABBTreeBuilder(leafBounds, leafCount);
+        if (pool == null) {
+            builder.build();
+        } else {
+            builder.build(pool);
+        }
+        root = linkBuiltHierarchy(builder, leaves);
+    }
+
+    private int linkBuiltHierarchy(AABBTreeBuilder builder, int[] leaves) {
+        int[] nodeIndices = new int[builder.getNodeCount()];
+        float[] bounds = builder.getBounds();
+
+        // Children are stored after their parents, so walking backwards links every node after its children.
+        for (int builtNode = builder.getNodeCount() - 1; builtNode >= 0; builtNode--) {
+            int item = builder.getItem(builtNode);
+            if (item != AABBTreeBuilder.NO_ITEM) {
+                nodeIndices[builtNode] = leaves[item];
+                continue;
+            }
+
+            AABBTreeNode<T> branchNode = allocateNode();
+            int branchNodeIndex = addNodeAndGetIndex(branchNode);
+            AABBTreeNode<T> left = getNodeAt(nodeIndices[builder.getLeftChild(builtNode)]);
+            AABBTreeNode<T> right = getNodeAt(nodeIndices[builder.getRightChild(builtNode)]);
+            branchNode.assignChildren(left.getIndex(), right.getIndex());
+            left.setParent(branchNodeIndex);
+            right.setParent(branchNodeIndex);
+            branchNode.setHeight(builder.getHeight(builtNode));
+
+            int offset = builtNode * AABBTreeBuilder.BOUNDS_STRIDE;
+            branchNode.getAABB().setMin(bounds[offset], bounds[offset + 1], bounds[offset + 2]);
+            branchNode.getAABB().setMax(bounds[offset + 3], bounds[offset + 4], bounds[offset + 5]);
+            nodeIndices[builtNode] = branchNodeIndex;
+        }
+
+        AABBTreeNode<T> rootNode = getNodeAt(nodeIndices[0]);
+        rootNode.setParent(AABBTreeNode.INVALID_NODE_INDEX);
+        return rootNode.getIndex();
     }
 
     public void clear() {
         nodes.clear();
         objects.clear();
         freeNodes.clear();
+        moveBuffer.clear();
         root = AABBTreeNode.INVALID_NODE_INDEX;
+        optimizationCursor = 0;
+        modificationCount++;
+        discardSnapshotPages();
     }
 
     public void update(T object) {
-        if (!contains(object)) {
-            add(object);
+        updateObject(object, null);
+    }
+
+    /**
+     * Updates the object, predicting its movement. The object's fat AABB is extended by the given displacement in the
+     * direction of the motion, so fast moving objects don't have to be reinserted into the tree on every update.
+     */
+    public void update(T object, Vector3fc displacement) {
+        updateObject(object, displacement);
+    }
+
+    private void updateObject(T object, Vector3fc displacement) {
+        int objectNodeIndex = objects.get(object.getID());
+        if (objectNodeIndex == LongIntHashMap.NO_VALUE) {
+            objects.put(object.getID(), insertLeaf(object, displacement));
             return;
         }
+        updateObject(object, objectNodeIndex, displacement);
+    }
+
+    /**
+     * Updates the object's fat AABB like {@link #update(Boundable, Vector3fc)}, but never restructures the tree. The
+     * branches have to be refitted with {@link #refitHierarchy()} afterwards. Returns {@code false} if the object isn't
+     * in the tree.
+     */
+    boolean refitObject(T object, Vector3fc displacement) {
+        int objectNodeIndex = objects.get(object.getID());
+        if (objectNodeIndex == LongIntHashMap.NO_VALUE) {
+            return false;
+        }
+
+        AABBTreeNode<T> node = getNodeAt(objectNodeIndex);
+        node.setData(object);
+        markChanged(node);
+        AABBf objectAABB = object.getAABB(updateAABB);
+        if (containsAABB(node.getAABB(), objectAABB) &&
+                (displacement == null || !isFatAABBOversized(node.getAABB(), objectAABB, displacement))) {
+            skippedUpdateCount++;
+            return true;
+        }
 
-        remove(object);
-        add(object);
+        if (displacement == null) {
+            node.computeAABBWithMargin(fatAABBMargin);
+        } else {
+            node.computeAABBWithMargin(fatAABBMargin, displacement);
+        }
+        reinsertedUpdateCount++;
+        markMoved(node);
+        return true;
+    }
+
+    private void updateObject(T object, int objectNodeIndex, Vector3fc displacement) {
+        // The leaf keeps a fat AABB, so small movements don't require restructuring the tree.
+        AABBTreeNode<T> node = getNodeAt(objectNodeIndex);
+        AABBf objectAABB = object.getAABB(updateAABB);
+        if (containsAABB(node.getAABB(), objectAABB) &&
+                (displacement == null || !isFatAABBOversized(node.getAABB(), objectAABB, displacement))) {
+            if (node.getData() != object) {
+                node.setData(object);
+                markChanged(node);
+                modificationCount++;
+            }
+            skippedUpdateCount++;
+            return;
+        }
+
+        reinsertedUpdateCount++;
+        removeLeaf(objectNodeIndex);
+        objects.put(object.getID(), insertLeaf(object, displacement));
     }
 
     public void remove(T object) {
-        Integer objectNodeIndex = objects.remove(AABBTreeObject.create(object));
-        if (root == AABBTreeNode.INVALID_NODE_INDEX || objectNodeIndex == null) {
+        int objectNodeIndex = objects.remove(object.getID());
+        if (root == AABBTreeNode.INVALID_NODE_INDEX || objectNodeIndex == LongIntHashMap.NO_VALUE) {
             return;
         }
+        removeLeaf(objectNodeIndex);
+    }
 
+    private void removeLeaf(int objectNodeIndex) {
+        modificationCount++;
         if (objectNodeIndex == root) {
             deallocateNode(getNodeAt(objectNodeIndex));
             root = AABBTreeNode.INVALID_NODE_INDEX;
@@ -347,7 +849,8 @@ public final class AABBTree<T extends Boundable & Identifiable> {
         }
 
         nodeSibling.setParent(nodeGrandparent.getIndex());
-        syncUpHierarchy(nodeGrandparent);
+        // Syncing starts at the sibling's parent, so the grandparent gets refreshed too.
+        syncUpHierarchy(nodeSibling);
     }
 
     public void detectOverlaps(AABBf overlapWith, List<T> result) {
@@ -355,28 +858,195 @@ public final class AABBTree<T extends Boundable & Identifiable> {
     }
 
     public void detectOverlaps(AABBf overlapWith, AABBOverlapFilter<T> filter, List<T> result) {
-        traverseTree(aabb -> aabb.testAABB(overlapWith), filter, result);
+        result.clear();
+        collectOverlaps(overlapWith, filter, result);
+    }
+
+    /**
+     * Adds the overlapping objects to the result, without clearing it first.
+     */
+    void collectOverlaps(AABBf overlapWith, AABBOverlapFilter<T> filter, List<T> result) {
+        traverseTree(NodeTest.AABB_OVERLAP, overlapWith, filter, result, null, Integer.MAX_VALUE);
     }
 
     public void detectCollisionPairs(List<CollisionPair<T>> result) {
         detectCollisionPairs(defaultCollisionFilter, result);
     }
 
+    /**
+     * Finds all pairs of objects whose fat AABBs overlap. Both subtrees of every node are descended at once, so each pair
+     * is found exactly once.
+     */
     public void detectCollisionPairs(CollisionFilter<T> filter, List<CollisionPair<T>> result) {
         result.clear();
+        detectCollisionPairs(filter, (objectA, objectB) -> result.add(new CollisionPair<>(objectA, objectB)));
+    }
+
+    void detectCollisionPairs(CollisionFilter<T> filter, BiConsumer<T, T> pairConsumer) {
         if (root == AABBTreeNode.INVALID_NODE_INDEX) {
             return;
         }
 
-        Set<CollisionPair<T>> alreadyTested = new HashSet<>();
+        // The stack holds pairs of nodes to test against each other. A pair with an invalid second node stands for
+        // testing the first node's subtree against itself.
+        IntStack stack = QueryContext.get().stack;
+        int stackBase = stack.size();
+        stack.push(root);
+        stack.push(AABBTreeNode.INVALID_NODE_INDEX);
+
+        while (stack.size() > stackBase) {
+            int nodeIndexB = stack.pop();
+            AABBTreeNode<T> nodeA = getNodeAt(stack.pop());
+
+            if (nodeIndexB == AABBTreeNode.INVALID_NODE_INDEX) {
+                if (!nodeA.isLeaf()) {
+                    stack.push(nodeA.getLeftChild());
+                    stack.push(AABBTreeNode.INVALID_NODE_INDEX);
+                    stack.push(nodeA.getRightChild());
+                    stack.push(AABBTreeNode.INVALID_NODE_INDEX);
+                    stack.push(nodeA.getLeftChild());
+                    stack.push(nodeA.getRightChild());
+                }
+                continue;
+            }
+
+            AABBTreeNode<T> nodeB = getNodeAt(nodeIndexB);
+            if (!nodeA.getAABB().testAABB(nodeB.getAABB())) {
+                continue;
+            }
 
-        for (int i = 0; i < nodes.size(); i++) {
-            AABBTreeNode<T> testedNode = nodes.get(i);
-            if (!testedNode.isLeaf()) {
+            if (nodeA.isLeaf() && nodeB.isLeaf()) {
+                acceptCollisionPair(nodeA.getData(), nodeB.getData(), filter, pairConsumer);
+            } else if (nodeB.isLeaf() || (!nodeA.isLeaf() && getArea(nodeA.getAABB()) >= getArea(nodeB.getAABB()))) {
+                stack.push(nodeA.getLeftChild());
+                stack.push(nodeIndexB);
+                stack.push(nodeA.getRightChild());
+                stack.push(nodeIndexB);
+            } else {
+                stack.push(nodeA.getIndex());
+                stack.push(nodeB.getLeftChild());
+                stack.push(nodeA.getIndex());
+                stack.push(nodeB.getRightChild());
+            }
+        }
+    }
+
+    /**
+     * Finds the pairs of overlapping objects in which one object belongs to this tree and the other to the given tree,
+     * descending both trees at once.
+     */
+    void detectCollisionPairs(AABBTree<T> other, CollisionFilter<T> filter, BiConsumer<T, T> pairConsumer) {
+        if (root == AABBTreeNode.INVALID_NODE_INDEX || other.root == AABBTreeNode.INVALID_NODE_INDEX) {
+            return;
+        }
+
+        // Pairs of nodes, the first one from this tree and the second one from the other.
+        IntStack stack = QueryContext.get().stack;
+        int stackBase = stack.size();
+        stack.push(root);
+        stack.push(other.root);
+
+        while (stack.size() > stackBase) {
+            AABBTreeNode<T> nodeB = other.getNodeAt(stack.pop());
+            AABBTreeNode<T> nodeA = getNodeAt(stack.pop());
+            if (!nodeA.getAABB().testAABB(nodeB.getAABB())) {
                 continue;
             }
 
-            detectCollisionPairsWithNode(testedNode, filter, alreadyTested, result);
+            if (nodeA.isLeaf() && nodeB.isLeaf()) {
+                acceptCollisionPair(nodeA.getData(), nodeB.getData(), filter, pairConsumer);
+            } else if (nodeB.isLeaf() || (!nodeA.isLeaf() && getArea(nodeA.getAABB()) >= getArea(nodeB.getAABB()))) {
+                stack.push(nodeA.getLeftChild());
+                stack.push(nodeB.getIndex());
+                stack.push(nodeA.getRightChild());
+                stack.push(nodeB.getIndex());
+            } else {
+                stack.push(nodeA.getIndex());
+                stack.push(nodeB.getLeftChild());
+                stack.push(nodeA.getIndex());
+                stack.push(nodeB.getRightChild());
+            }
+        }
+    }
+
+    private void acceptCollisionPair(T objectA, T objectB, CollisionFilter<T> filter, BiConsumer<T, T> pairConsumer) {
+        // The filter isn't required to be symmetric, so the pair is accepted if it passes in either order.
+        if (filter.test(objectA, objectB)) {
+            pairConsumer.accept(objectA, objectB);
+        } else if (filter.test(objectB, objectA)) {
+            pairConsumer.accept(objectB, objectA);
+        }
+    }
+
+    public void detectMovedCollisionPairs(List<CollisionPair<T>> result) {
+        detectMovedCollisionPairs(defaultCollisionFilter, result);
+    }
+
+    /**
+     * Finds the pairs of overlapping objects in which at least one object was added or reinserted since the last call.
+     * Objects that weren't moved aren't queried at all. Requires move tracking to be enabled.
+     *
+     * @see #setMoveTrackingEnabled(boolean)
+     */
+    public void detectMovedCollisionPairs(CollisionFilter<T> filter, List<CollisionPair<T>> result) {
+        result.clear();
+        detectMovedCollisionPairs(filter, (objectA, objectB) -> result.add(new CollisionPair<>(objectA, objectB)));
+    }
+
+    void detectMovedCollisionPairs(CollisionFilter<T> filter, BiConsumer<T, T> pairConsumer) {
+
+        for (int i = 0; i < moveBuffer.size(); i++) {
+            AABBTreeNode<T> movedNode = getNodeAt(moveBuffer.get(i));
+            // Removed nodes are unmarked, and a node reused by another object is queued only once.
+            if (movedNode.isMoved()) {
+                detectCollisionPairsWithNode(movedNode, filter, pairConsumer);
+            }
+        }
+
+        clearMoveBuffer();
+    }
+
+    private void markMoved(AABBTreeNode<T> node) {
+        if (!moveTrackingEnabled || node.isMoved()) {
+            return;
+        }
+        node.setMoved(true);
+        // A node that was freed and reused may still be queued for the object that used it before.
+        if (!node.isQueued()) {
+            node.setQueued(true);
+            moveBuffer.push(node.getIndex());
+        }
+    }
+
+    void clearMoveBuffer() {
+        for (int i = 0; i < moveBuffer.size(); i++) {
+            AABBTreeNode<T> node = getNodeAt(moveBuffer.get(i));
+            node.setMoved(false);
+            node.setQueued(false);
+        }
+        moveBuffer.clear();
+    }
+
+    private void detectCollisionPairsWithNode(AABBTreeNode<T> nodeToTest, CollisionFilter<T> filter, BiConsumer<T, T> pairConsumer) {
+        IntStack stack = QueryContext.get().stack;
+        int stackBase = stack.size();
+        stack.push(root);
+        AABBf overlapWith = nodeToTest.getAABB();
+
+        while (stack.size() > stackBase) {
+            AABBTreeNode<T> node = getNodeAt(stack.pop());
+            if (!node.getAABB().testAABB(overlapWith)) {
+                continue;
+            }
+
+            if (!node.isLeaf()) {
+                stack.push(node.getLeftChild());
+                stack.push(node.getRightChild());
+            } else if (node.getIndex() != nodeToTest.getIndex() &&
+                    // When both objects moved, the pair is reported only by the node with the lower index.
+                    (!node.isMoved() || node.getIndex() > nodeToTest.getIndex())) {
+                acceptCollisionPair(nodeToTest.getData(), node.getData(), filter, pairConsumer);
+            }
         }
     }
 
@@ -385,8 +1055,13 @@ public final class AABBTree<T extends Boundable & Identifiable> {
     }
 
     public void detectInFrustum(Matrix4fc worldViewProjection, AABBOverlapFilter<T> filter, List<T> result) {
-        frustumIntersection.set(worldViewProjection, false);
-        traverseTree(aabb -> frustumIntersection.testAab(aabb.minX, aabb.minY, aabb.minZ, aabb.maxX, aabb.maxY, aabb.maxZ), filter, result);
+        result.clear();
+        collectInFrustum(worldViewProjection, filter, result);
+    }
+
+    void collectInFrustum(Matrix4fc worldViewProjection, AABBOverlapFilter<T> filter, List<T> result) {
+        QueryContext.get().frustumIntersection.set(worldViewProjection, false);
+        traverseTree(NodeTest.FRUSTUM, null, filter, result, null, Integer.MAX_VALUE);
     }
 
     public void detectRayIntersection(Rayf ray, List<T> result) {
@@ -394,49 +1069,614 @@ public final class AABBTree<T extends Boundable & Identifiable> {
     }
 
     public void detectRayIntersection(Rayf ray, AABBOverlapFilter<T> filter, List<T> result) {
-        rayIntersection.set(ray.oX, ray.oY, ray.oZ, ray.dX, ray.dY, ray.dZ);
-        traverseTree(aabb -> rayIntersection.test(aabb.minX, aabb.minY, aabb.minZ, aabb.maxX, aabb.maxY, aabb.maxZ), filter, result);
+        result.clear();
+        collectRayIntersections(ray, filter, result);
+    }
+
+    void collectRayIntersections(Rayf ray, AABBOverlapFilter<T> filter, List<T> result) {
+        QueryContext.get().rayIntersection.set(ray.oX, ray.oY, ray.oZ, ray.dX, ray.dY, ray.dZ);
+        traverseTree(NodeTest.RAY, null, filter, result, null, Integer.MAX_VALUE);
+    }
+
+    public void detectOverlaps(List<AABBf> queries, List<List<T>> results, Executor executor) {
+        detectOverlaps(queries, defaultAABBOverlapFilter, results, executor);
+    }
+
+    /**
+     * Runs a batch of overlap queries, spreading them across the given executor. The objects found by each query are
+     * stored in the result list at the same position. If the executor is {@code null}, the queries run on the calling
+     * thread. The tree must not be modified until the method returns.
+     */
+    public void detectOverlaps(List<AABBf> queries, AABBOverlapFilter<T> filter, List<List<T>> results,
+                               Executor executor) {
+        validateBatch(queries, results);
+        BatchQueryRunner.run(queries.size(), executor, i -> detectOverlaps(queries.get(i), filter, results.get(i)));
     }
 
-    private void traverseTree(Predicate<AABBf> nodeTest, AABBOverlapFilter<T> filter, List<T> result) {
+    public void detectInFrustums(List<? extends Matrix4fc> worldViewProjections, List<List<T>> results,
+                                 Executor executor) {
+        detectInFrustums(worldViewProjections, defaultAABBOverlapFilter, results, executor);
+    }
+
+    /**
+     * Culls the tree against a batch of views, spreading them across the given executor.
+     *
+     * @see #detectOverlaps(List, AABBOverlapFilter, List, Executor)
+     */
+    public void detectInFrustums(List<? extends Matrix4fc> worldViewProjections, AABBOverlapFilter<T> filter,
+                                 List<List<T>> results, Executor executor) {
+        validateBatch(worldViewProjections, results);
+        BatchQueryRunner.run(worldViewProjections.size(), executor,
+                i -> detectInFrustum(worldViewProjections.get(i), filter, results.get(i)));
+    }
+
+    public void detectRayIntersections(List<Rayf> rays, List<List<T>> results, Executor executor) {
+        detectRayIntersections(rays, defaultAABBOverlapFilter, results, executor);
+    }
+
+    /**
+     * Casts a batch of rays, spreading them across the given executor.
+     *
+     * @see #detectOverlaps(List, AABBOverlapFilter, List, Executor)
+     */
+    public void detectRayIntersections(List<Rayf> rays, AABBOverlapFilter<T> filter, List<List<T>> results,
+                                       Executor executor) {
+        validateBatch(rays, results);
+        BatchQueryRunner.run(rays.size(), executor, i -> detectRayIntersection(rays.get(i), filter, results.get(i)));
+    }
+
+    private static void validateBatch(List<?> queries, List<?> results) {
+        if (queries.size() != results.size()) {
+            throw new IllegalArgumentException("A result list is required for every query");
+        }
+    }
+
+    /**
+     * Visits every object whose fat AABB overlaps the given AABB, until the visitor requests to stop.
+     */
+    public void query(AABBf overlapWith, TreeQueryVisitor<T> visitor) {
+        traverseTree(NodeTest.AABB_OVERLAP, overlapWith, defaultAABBOverlapFilter, null, visitor, Integer.MAX_VALUE);
+    }
+
+    public void queryFrustum(Matrix4fc worldViewProjection, TreeQueryVisitor<T> visitor) {
+        QueryContext.get().frustumIntersection.set(worldViewProjection, false);
+        traverseTree(NodeTest.FRUSTUM, null, defaultAABBOverlapFilter, null, visitor, Integer.MAX_VALUE);
+    }
+
+    public void queryRay(Rayf ray, TreeQueryVisitor<T> visitor) {
+        QueryContext.get().rayIntersection.set(ray.oX, ray.oY, ray.oZ, ray.dX, ray.dY, ray.dZ);
+        traverseTree(NodeTest.RAY, null, defaultAABBOverlapFilter, null, visitor, Integer.MAX_VALUE);
+    }
+
+    public boolean anyOverlap(AABBf overlapWith) {
+        return anyOverlap(overlapWith, defaultAABBOverlapFilter);
+    }
+
+    /**
+     * Checks whether any object overlaps the given AABB. The traversal stops at the first match.
+     */
+    public boolean anyOverlap(AABBf overlapWith, AABBOverlapFilter<T> filter) {
+        return traverseTree(NodeTest.AABB_OVERLAP, overlapWith, filter, null, null, 1) > 0;
+    }
+
+    public int countOverlaps(AABBf overlapWith) {
+        return countOverlaps(overlapWith, defaultAABBOverlapFilter);
+    }
+
+    public int countOverlaps(AABBf overlapWith, AABBOverlapFilter<T> filter) {
+        return traverseTree(NodeTest.AABB_OVERLAP, overlapWith, filter, null, null, Integer.MAX_VALUE);
+    }
+
+    public boolean rayCast(Rayf ray, float maxDistance, RayCastHit<T> hit) {
+        return rayCast(ray, maxDistance, defaultRayCastCallback, hit);
+    }
+
+    /**
+     * Finds the closest object hit by the ray within {@code maxDistance}, measured in multiples of the length of the
+     * ray's direction. Children are visited front to back, and every hit reported by the callback shortens the ray, so
+     * the nodes behind the closest hit found so far are skipped. Returns whether anything was hit.
+     */
+    public boolean rayCast(Rayf ray, float maxDistance, RayCastCallback<T> callback, RayCastHit<T> hit) {
+        hit.reset();
+        if (root == AABBTreeNode.INVALID_NODE_INDEX) {
+            return false;
+        }
+
+        float inverseDirectionX = 1.0f / ray.dX;
+        float inverseDirectionY = 1.0f / ray.dY;
+        float inverseDirectionZ = 1.0f / ray.dZ;
+        float closestDistance = maxDistance;
+
+        // The stack holds pairs of a node and the distance at which the ray enters it.
+        IntStack stack = QueryContext.get().stack;
+        int stackBase = stack.size();
+        pushRayCastNode(stack, getNodeAt(root), getRayEntryDistance(getNodeAt(root).getAABB(), ray.oX, ray.oY, ray.oZ,
+                inverseDirectionX, inverseDirectionY, inverseDirectionZ), closestDistance);
+
+        while (stack.size() > stackBase) {
+            float entryDistance = Float.intBitsToFloat(stack.pop());
+            AABBTreeNode<T> node = getNodeAt(stack.pop());
+            if (entryDistance > closestDistance) {
+                continue;
+            }
+
+            if (node.isLeaf()) {
+                float hitDistance = callback.rayCast(node.getData(), ray, closestDistance);
+                if (hitDistance >= 0.0f && (hitDistance < closestDistance || (!hit.hasHit() && hitDistance == closestDistance))) {
+                    closestDistance = hitDistance;
+                    hit.set(node.getData(), hitDistance);
+                }
+                continue;
+            }
+
+            AABBTreeNode<T> left = getNodeAt(node.getLeftChild());
+            AABBTreeNode<T> right = getNodeAt(node.getRightChild());
+            float leftDistance = getRayEntryDistance(left.getAABB(), ray.oX, ray.oY, ray.oZ, inverseDirectionX,
+                    inverseDirectionY, inverseDirectionZ);
+            float rightDistance = getRayEntryDistance(right.getAABB(), ray.oX, ray.oY, ray.oZ, inverseDirectionX,
+                    inverseDirectionY, inverseDirectionZ);
+
+            // The closer child is pushed last, so it's visited first.
+            if (leftDistance <= rightDistance) {
+                pushRayCastNode(stack, right, rightDistance, closestDistance);
+                pushRayCastNode(stack, left, leftDistance, closestDistance);
+            } else {
+                pushRayCastNode(stack, left, leftDistance, closestDistance);
+                pushRayCastNode(stack, right, rightDistance, closestDistance);
+            }
+        }
+        return hit.hasHit();
+    }
+
+    private void pushRayCastNode(IntStack stack, AABBTreeNode<T> node, float entryDistance, float closestDistance) {
+        // A missed node has an infinite entry distance, which would pass the check below for an unbounded ray.
+        if (entryDistance != Float.POSITIVE_INFINITY && entryDistance <= closestDistance) {
+            stack.push(node.getIndex());
+            stack.push(Float.floatToRawIntBits(entryDistance));
+        }
+    }
+
+    /**
+     * Returns the object closest to the given point, measured to the object's AABB, or {@code null} if the tree is
+     * empty.
+     */
+    public T nearest(Vector3fc point) {
+        return findNearest(point, 1, Float.POSITIVE_INFINITY, defaultAABBOverlapFilter, defaultDistanceFunction, null);
+    }
+
+    public void nearest(Vector3fc point, int k, List<T> result) {
+        nearest(point, k, defaultAABBOverlapFilter, defaultDistanceFunction, result);
+    }
+
+    /**
+     * Finds up to {@code k} objects closest to the given point, ordered by their distance. The nodes are visited
+     * best-first, closest bounding box first, so only the part of the tree around the point is traversed.
+     */
+    public void nearest(Vector3fc point, int k, AABBOverlapFilter<T> filter, DistanceFunction<T> distanceFunction,
+                        List<T> result) {
+        result.clear();
+        findNearest(point, k, Float.POSITIVE_INFINITY, filter, distanceFunction, result);
+    }
+
+    public void nearestWithin(Vector3fc point, float maxDistance, List<T> result) {
+        nearestWithin(point, maxDistance, defaultAABBOverlapFilter, defaultDistanceFunction, result);
+    }
+
+    /**
+     * Finds all objects not farther from the given point than {@code maxDistance}, ordered by their distance. The
+     * distance can't be negative.
+     */
+    public void nearestWithin(Vector3fc point, float maxDistance, AABBOverlapFilter<T> filter,
+                              DistanceFunction<T> distanceFunction, List<T> result) {
+        // The distance is squared during the search, so a negative one would act like its absolute value.
+        if (!(maxDistance >= 0.0f)) {
+            throw new IllegalArgumentException("The maximum distance must not be negative");
+        }
         result.clear();
+        findNearest(point, Integer.MAX_VALUE, maxDistance, filter, distanceFunction, result);
+    }
+
+    private T findNearest(Vector3fc point, int k, float maxDistance, AABBOverlapFilter<T> filter,
+                          DistanceFunction<T> distanceFunction, List<T> result) {
+        if (root == AABBTreeNode.INVALID_NODE_INDEX || k <= 0) {
+            return null;
+        }
+
+        // The heap can't be shared with an outer query, e.g. one issued from a distance function.
+        FloatIntHeap contextHeap = QueryContext.get().heap;
+        FloatIntHeap heap = contextHeap.isEmpty() ? contextHeap : new FloatIntHeap();
+        float maxDistanceSquared = maxDistance * maxDistance;
+        T nearest = null;
+        int found = 0;
+        try {
+            // Nodes are keyed by the squared distance to their AABBs. Leaves whose exact distance was computed are pushed
+            // again with a negative value, and they are reported once they reach the top of the heap.
+            heap.push(getDistanceSquared(getNodeAt(root).getAABB(), point), root);
+            while (!heap.isEmpty() && found < k && heap.peekKey() <= maxDistanceSquared) {
+                int value = heap.pop();
+                if (value < 0) {
+                    T object = getNodeAt(~value).getData();
+                    if (nearest == null) {
+                        nearest = object;
+                    }
+                    if (result != null) {
+                        result.add(object);
+                    }
+                    found++;
+                    continue;
+                }
+
+                AABBTreeNode<T> node = getNodeAt(value);
+                if (node.isLeaf()) {
+                    if (filter.test(node.getData())) {
+                        float distance = distanceFunction.getDistance(node.getData(), point);
+                        heap.push(distance * distance, ~value);
+                    }
+                } else {
+                    AABBTreeNode<T> left = getNodeAt(node.getLeftChild());
+                    AABBTreeNode<T> right = getNodeAt(node.getRightChild());
+                    heap.push(getDistanceSquared(left.getAABB(), point), left.getIndex());
+                    heap.push(getDistanceSquared(right.getAABB(), point), right.getIndex());
+                }
+            }
+        } finally {
+            heap.clear();
+        }
+        return nearest;
+    }
+
+    private int traverseTree(NodeTest nodeTest, AABBf overlapWith, AABBOverlapFilter<T> filter, List<T> result,
+                             TreeQueryVisitor<T> visitor, int maxHits) {
         if (root == AABBTreeNode.INVALID_NODE_INDEX) {
-            return;
+            return 0;
         }
 
-        Deque<Integer> stack = new ArrayDeque<>();
-        stack.offer(root);
+        // Nested queries (e.g. issued from a filter) continue on top of the stack, above this traversal's base.
+        QueryContext context = QueryContext.get();
+        IntStack stack = context.stack;
+        int stackBase = stack.size();
+        stack.push(root);
 
-        while (!stack.isEmpty()) {
-            Integer nodeIndex = stack.pop();
+        int hits = 0;
+        while (stack.size() > stackBase) {
+            int nodeIndex = stack.pop();
             if (nodeIndex == AABBTreeNode.INVALID_NODE_INDEX) {
                 continue;
             }
 
             AABBTreeNode<T> node = getNodeAt(nodeIndex);
-            AABBf nodeAABB = node.getAABB();
-            if (nodeTest.test(nodeAABB)) {
+            if (nodeTest.test(node.getAABB(), overlapWith, context)) {
                 if (node.isLeaf()) {
                     T nodeData = node.getData();
-                    if (filter.test(nodeData)) {
+                    if (!filter.test(nodeData)) {
+                        continue;
+                    }
+                    hits++;
+                    if (result != null) {
                         result.add(nodeData);
                     }
+                    if (hits == maxHits || (visitor != null && visitor.visit(nodeData) == TreeQueryVisitor.VisitResult.STOP)) {
+                        stack.truncate(stackBase);
+                        return hits;
+                    }
                 } else {
-                    stack.offer(node.getLeftChild());
-                    stack.offer(node.getRightChild());
+                    stack.push(node.getLeftChild());
+                    stack.push(node.getRightChild());
                 }
             }
         }
+        return hits;
+    }
+
+    /**
+     * Creates a read-only copy of the tree which stores its nodes in flat primitive arrays.
+     */
+    public FlatAABBTree<T> toFlatTree() {
+        return new FlatAABBTree<>(this);
+    }
+
+    /**
+     * Creates a read-only copy of the tree in which every node has up to four children.
+     */
+    public WideAABBTree<T> toWideTree() {
+        return new WideAABBTree<>(this);
+    }
+
+    /**
+     * Creates a compact, read-only copy of the tree which stores the bounds of its nodes as 16-bit integers.
+     */
+    public QuantizedAABBTree<T> toQuantizedTree() {
+        return new QuantizedAABBTree<>(toFlatTree());
+    }
+
+    /**
+     * Returns an immutable copy of the current state of the tree, which can be queried from other threads while this
+     * tree is being modified. If the tree hasn't changed since the previous snapshot, the previous snapshot is returned.
+     * Otherwise only the nodes changed since then are copied, and the rest is shared with the previous snapshot.
+     */
+    public AABBTreeSnapshot<T> snapshot() {
+        if (snapshot == null || snapshotModificationCount != modificationCount) {
+            snapshot = new AABBTreeSnapshot<>(this, snapshot, changedSnapshotPages);
+            changedSnapshotPages.clear();
+            snapshotModificationCount = modificationCount;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Writes the complete state of the tree to the given stream: the fat AABB margin, every node (including the free
+     * ones), the free list and the objects that were moved since the last pair query. Objects are stored by their IDs
+     * only. The stream isn't closed and isn't buffered, so a buffered stream should be passed for performance.
+     */
+    public void writeTo(OutputStream outputStream) throws IOException {
+        DataOutputStream output = new DataOutputStream(outputStream);
+        output.writeInt(STREAM_MAGIC);
+        output.writeInt(STREAM_VERSION);
+        output.writeFloat(fatAABBMargin);
+        output.writeBoolean(moveTrackingEnabled);
+        output.writeInt(root);
+        output.writeInt(nodes.size());
+
+        for (AABBTreeNode<T> node : nodes) {
+            if (node.isLeaf() && node.getData() == null) {
+                output.writeByte(FREE_NODE);
+                continue;
+            }
+            if (node.isLeaf()) {
+                output.writeByte(node.isMoved() ? MOVED_LEAF_NODE : LEAF_NODE);
+                output.writeLong(node.getData().getID());
+            } else {
+                output.writeByte(BRANCH_NODE);
+                output.writeInt(node.getLeftChild());
+                output.writeInt(node.getRightChild());
+                output.writeInt(node.getHeight());
+            }
+            output.writeInt(node.getParent());
+            AABBf aabb = node.getAABB();
+            output.writeFloat(aabb.minX);
+            output.writeFloat(aabb.minY);
+            output.writeFloat(aabb.minZ);
+            output.writeFloat(aabb.maxX);
+            output.writeFloat(aabb.maxY);
+            output.writeFloat(aabb.maxZ);
+        }
+
+        output.writeInt(freeNodes.size());
+        for (int i = 0; i < freeNodes.size(); i++) {
+            output.writeInt(freeNodes.get(i));
+        }
+        output.writeInt(moveBuffer.size());
+        for (int i = 0; i < moveBuffer.size(); i++) {
+            output.writeInt(moveBuffer.get(i));
+        }
+        output.flush();
+    }
+
+    /**
+     * Replaces the state of the tree with the one written by {@link #writeTo(OutputStream)}. The nodes are restored
+     * exactly as they were, without reinserting the objects, which are resolved by their IDs through the given lookup.
+     * A {@link StreamCorruptedException} is thrown if the nodes read don't form a valid tree, and the tree is left
+     * unchanged if reading fails. The stream isn't closed.
+     */
+    public void readFrom(InputStream inputStream, LongFunction<T> lookup) throws IOException {
+        DataInputStream input = new DataInputStream(inputStream);
+        if (input.readInt() != STREAM_MAGIC) {
+            throw new StreamCorruptedException("The stream doesn't contain a tree");
+        }
+        int version = input.readInt();
+        if (version != STREAM_VERSION) {
+            throw new IOException("Unsupported tree version " + version);
+        }
+        float readFatAABBMargin = input.readFloat();
+        boolean readMoveTrackingEnabled = input.readBoolean();
+        int readRoot = input.readInt();
+        int nodeCount = readCount(input);
+
+        // Corrupt counts can be huge, so the lists only grow as the data is actually read.
+        ArrayList<AABBTreeNode<T>> readNodes = new ArrayList<>(min(nodeCount, READ_CHUNK_SIZE));
+        LongIntHashMap readObjects = new LongIntHashMap();
+        for (int i = 0; i < nodeCount; i++) {
+            AABBTreeNode<T> node = new AABBTreeNode<>();
+            node.setIndex(i);
+            readNodes.add(node);
+
+            byte type = input.readByte();
+            if (type == FREE_NODE) {
+                node.resetForReuse();
+                continue;
+            }
+            if (type == LEAF_NODE || type == MOVED_LEAF_NODE) {
+                long id = input.readLong();
+                T object = lookup.apply(id);
+                if (object == null) {
+                    throw new IllegalArgumentException("Unknown object ID " + id);
+                }
+                if (readObjects.put(id, i) != LongIntHashMap.NO_VALUE) {
+                    throw new StreamCorruptedException("Duplicate object ID " + id);
+                }
+                node.setData(object);
+                node.setMoved(type == MOVED_LEAF_NODE);
+            } else if (type == BRANCH_NODE) {
+                node.assignChildren(readNodeIndex(input, nodeCount), readNodeIndex(input, nodeCount));
+                node.setHeight(input.readInt());
+            } else {
+                throw new StreamCorruptedException("Invalid node type " + type);
+            }
+            int parent = input.readInt();
+            if (parent != AABBTreeNode.INVALID_NODE_INDEX) {
+                checkNodeIndex(parent, nodeCount);
+            }
+            node.setParent(parent);
+            node.getAABB().setMin(input.readFloat(), input.readFloat(), input.readFloat());
+            node.getAABB().setMax(input.readFloat(), input.readFloat(), input.readFloat());
+        }
+
+        int freeNodeCount = readCount(input);
+        IntStack readFreeNodes = new IntStack(min(freeNodeCount, READ_CHUNK_SIZE));
+        for (int i = 0; i < freeNodeCount; i++) {
+            readFreeNodes.push(readNodeIndex(input, nodeCount));
+        }
+        int movedNodeCount = readCount(input);
+        IntStack readMoveBuffer = new IntStack(min(movedNodeCount, READ_CHUNK_SIZE));
+        for (int i = 0; i < movedNodeCount; i++) {
+            int movedNode = readNodeIndex(input, nodeCount);
+            // Stale entries are allowed, as the buffer is only filtered when it's cleared, but a node is queued once.
+            if (readNodes.get(movedNode).isQueued()) {
+                throw new StreamCorruptedException("Duplicate moved node " + movedNode);
+            }
+            readNodes.get(movedNode).setQueued(true);
+            readMoveBuffer.push(movedNode);
+        }
+        if (!readMoveTrackingEnabled && movedNodeCount > 0) {
+            throw new StreamCorruptedException("Moved nodes without move tracking");
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            if (readNodes.get(i).isMoved() && !readNodes.get(i).isQueued()) {
+                throw new StreamCorruptedException("Moved node " + i + " is missing from the move buffer");
+            }
+        }
+        validateHierarchy(readNodes, readRoot, readFreeNodes);
+
+        clear();
+        nodes.addAll(readNodes);
+        objects = readObjects;
+        freeNodes = readFreeNodes;
+        for (int i = 0; i < readMoveBuffer.size(); i++) {
+            moveBuffer.push(readMoveBuffer.get(i));
+        }
+        root = readRoot;
+        fatAABBMargin = readFatAABBMargin;
+        moveTrackingEnabled = readMoveTrackingEnabled;
+    }
+
+    private static int readCount(DataInputStream input) throws IOException {
+        int count = input.readInt();
+        if (count < 0) {
+            throw new StreamCorruptedException("Invalid count " + count);
+        }
+        return count;
+    }
+
+    private static int readNodeIndex(DataInputStream input, int nodeCount) throws IOException {
+        return checkNodeIndex(input.readInt(), nodeCount);
+    }
+
+    private static int checkNodeIndex(int index, int nodeCount) throws StreamCorruptedException {
+        if (index < 0 || index >= nodeCount) {
+            throw new StreamCorruptedException("Invalid node index " + index);
+        }
+        return index;
+    }
+
+    private static boolean isFreeNode(AABBTreeNode<?> node) {
+        return node.isLeaf() && node.getData() == null;
+    }
+
+    /**
+     * Checks that the read nodes form a single tree under the root, and that the free list holds every other node
+     * exactly once.
+     */
+    private static <T extends Boundable & Identifiable> void validateHierarchy(List<AABBTreeNode<T>> readNodes,
+                                                                               int readRoot, IntStack readFreeNodes)
+            throws StreamCorruptedException {
+        int liveNodeCount = 0;
+        for (AABBTreeNode<T> node : readNodes) {
+            if (isFreeNode(node)) {
+                continue;
+            }
+            liveNodeCount++;
+            for (int i = 0; !node.isLeaf() && i < 2; i++) {
+                AABBTreeNode<T> child = readNodes.get(node.getChild(i));
+                if (isFreeNode(child) || child.getParent() != node.getIndex()) {
+                    throw new StreamCorruptedException("Invalid child of node " + node.getIndex());
+                }
+            }
+        }
+
+        int reachableNodeCount = 0;
+        if (readRoot != AABBTreeNode.INVALID_NODE_INDEX) {
+            checkNodeIndex(readRoot, readNodes.size());
+            AABBTreeNode<T> rootNode = readNodes.get(readRoot);
+            if (isFreeNode(rootNode) || rootNode.getParent() != AABBTreeNode.INVALID_NODE_INDEX) {
+                throw new StreamCorruptedException("Invalid root " + readRoot);
+            }
+            // Every child points back at its parent, so the walk can only revisit a node through a cycle.
+            IntStack stack = new IntStack();
+            stack.push(readRoot);
+            while (!stack.isEmpty() && reachableNodeCount <= liveNodeCount) {
+                AABBTreeNode<T> node = readNodes.get(stack.pop());
+                reachableNodeCount++;
+                if (!node.isLeaf()) {
+                    stack.push(node.getLeftChild());
+                    stack.push(node.getRightChild());
+                }
+            }
+        }
+        if (reachableNodeCount != liveNodeCount) {
+            throw new StreamCorruptedException("Not all nodes belong to the tree");
+        }
+
+        boolean[] listedFreeNodes = new boolean[readNodes.size()];
+        for (int i = 0; i < readFreeNodes.size(); i++) {
+            int freeNode = readFreeNodes.get(i);
+            if (!isFreeNode(readNodes.get(freeNode)) || listedFreeNodes[freeNode]) {
+                throw new StreamCorruptedException("Invalid free node " + freeNode);
+            }
+            listedFreeNodes[freeNode] = true;
+        }
+        if (readFreeNodes.size() != readNodes.size() - liveNodeCount) {
+            throw new StreamCorruptedException("Not all free nodes are listed");
+        }
+    }
+
+    AABBf getFatAABB(T object) {
+        int objectNodeIndex = objects.get(object.getID());
+        return objectNodeIndex == LongIntHashMap.NO_VALUE ? null : getNodeAt(objectNodeIndex).getAABB();
     }
 
     public boolean contains(T object) {
-        return objects.containsKey(AABBTreeObject.create(object));
+        return objects.containsKey(object.getID());
     }
 
     public int size() {
         return objects.size();
     }
 
+    /**
+     * Returns the number of updates that were skipped, because the object still fitted in its fat AABB.
+     */
+    public long getSkippedUpdateCount() {
+        return skippedUpdateCount;
+    }
+
+    /**
+     * Returns the number of updates that required reinserting the object into the tree. Objects which outgrew their
+     * fat AABBs during a bulk update of an {@link AABBTreeCommandBuffer} are refitted in place, but counted here too.
+     */
+    public long getReinsertedUpdateCount() {
+        return reinsertedUpdateCount;
+    }
+
+    public boolean isMoveTrackingEnabled() {
+        return moveTrackingEnabled;
+    }
+
+    /**
+     * Enables collecting the objects that were added or reinserted into the tree, so that
+     * {@link #detectMovedCollisionPairs(CollisionFilter, List)} can process only them.
+     */
+    public void setMoveTrackingEnabled(boolean moveTrackingEnabled) {
+        this.moveTrackingEnabled = moveTrackingEnabled;
+        if (!moveTrackingEnabled) {
+            clearMoveBuffer();
+        }
+    }
+
+    public void resetUpdateCounts() {
+        skippedUpdateCount = 0L;
+        reinsertedUpdateCount = 0L;
+    }
+
     List<AABBTreeNode<T>> getNodes() {
         return nodes;
     }
@@ -445,7 +1685,7 @@ public final class AABBTree<T extends Boundable & Identifiable> {
         return root;
     }
 
-    Deque<Integer> getFreeNodes() {
+    IntStack getFreeNodes() {
         return freeNodes;
     }
 }
@@ -0,0 +1,448 @@
+package pl.pateman.dynamicaabbtree;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Builds a binary hierarchy over a set of AABBs top-down, partitioning every node with the binned surface area
+ * heuristic (SAH). The result is stored in pre-order: the left child of a node always follows it, and a node covering
+ * {@code n} items spans exactly {@code 2n - 1} entries, which makes the layout independent of the order in which the
+ * subtrees are built. Subtrees can therefore be built in parallel, with the same result regardless of the number of
+ * threads.
+ */
+final class AABBTreeBuilder {
+    static final int BOUNDS_STRIDE = 6;
+    static final int NO_ITEM = -1;
+    private static final int BIN_COUNT = 16;
+    // Past this depth the SAH is no longer trusted and nodes are split at the object median, which bounds the depth.
+    private static final int MAX_SAH_DEPTH = 48;
+    // Evaluating the bins doesn't pay off for nodes this small, so they are split at the object median.
+    private static final int MIN_SAH_ITEM_COUNT = 8;
+    // Subtrees with fewer items than this are built by a single task.
+    private static final int MIN_PARALLEL_ITEM_COUNT = 4096;
+
+    private final float[] sourceBounds;
+
+    private final float[] itemBounds;
+    private final float[] centroids;
+    private final int[] itemIDs;
+    private final int[] order;
+    private final int itemCount;
+
+    private final int nodeCount;
+    private final int[] leftChildren;
+    private final int[] rightChildren;
+    private final int[] items;
+    private final int[] heights;
+    private final float[] bounds;
+
+    AABBTreeBuilder(float[] itemBounds, int itemCount) {
+        this.itemCount = itemCount;
+        sourceBounds = itemBounds;
+        this.itemBounds = new float[itemCount * BOUNDS_STRIDE];
+        centroids = new float[itemCount * 3];
+        itemIDs = new int[itemCount];
+        order = new int[itemCount];
+
+        nodeCount = itemCount == 0 ? 0 : 2 * itemCount - 1;
+        leftChildren = new int[nodeCount];
+        rightChildren = new int[nodeCount];
+        items = new int[nodeCount];
+        heights = new int[nodeCount];
+        bounds = new float[nodeCount * BOUNDS_STRIDE];
+    }
+
+    /**
+     * Copies the items in the order of the Morton codes of their centroids. The partitioning only permutes indices into
+     * these arrays, so keeping nearby items next to each other in memory makes it far more cache friendly.
+     */
+    private void sortSpatially(boolean parallel) {
+        float[] unsortedBounds = sourceBounds;
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < itemCount; i++) {
+            int offset = i * BOUNDS_STRIDE;
+            float x = (unsortedBounds[offset] + unsortedBounds[offset + 3]) * 0.5f;
+            float y = (unsortedBounds[offset + 1] + unsortedBounds[offset + 4]) * 0.5f;
+            float z = (unsortedBounds[offset + 2] + unsortedBounds[offset + 5]) * 0.5f;
+            minX = min(minX, x);
+            minY = min(minY, y);
+            minZ = min(minZ, z);
+            maxX = max(maxX, x);
+            maxY = max(maxY, y);
+            maxZ = max(maxZ, z);
+        }
+
+        // The upper 32 bits hold the Morton code and the lower ones the item, so sorting the keys sorts the items.
+        long[] keys = new long[itemCount];
+        for (int i = 0; i < itemCount; i++) {
+            int offset = i * BOUNDS_STRIDE;
+            int x = quantize((unsortedBounds[offset] + unsortedBounds[offset + 3]) * 0.5f, minX, maxX);
+            int y = quantize((unsortedBounds[offset + 1] + unsortedBounds[offset + 4]) * 0.5f, minY, maxY);
+            int z = quantize((unsortedBounds[offset + 2] + unsortedBounds[offset + 5]) * 0.5f, minZ, maxZ);
+            long mortonCode = (spreadBits(x) << 2) | (spreadBits(y) << 1) | spreadBits(z);
+            keys[i] = (mortonCode << 32) | i;
+        }
+        if (parallel) {
+            Arrays.parallelSort(keys);
+        } else {
+            Arrays.sort(keys);
+        }
+
+        for (int i = 0; i < itemCount; i++) {
+            int item = (int) keys[i];
+            System.arraycopy(unsortedBounds, item * BOUNDS_STRIDE, itemBounds, i * BOUNDS_STRIDE, BOUNDS_STRIDE);
+            int offset = i * BOUNDS_STRIDE;
+            centroids[i * 3] = (itemBounds[offset] + itemBounds[offset + 3]) * 0.5f;
+            centroids[i * 3 + 1] = (itemBounds[offset + 1] + itemBounds[offset + 4]) * 0.5f;
+            centroids[i * 3 + 2] = (itemBounds[offset + 2] + itemBounds[offset + 5]) * 0.5f;
+            itemIDs[i] = item;
+            order[i] = i;
+        }
+    }
+
+    private static int quantize(float value, float min, float max) {
+        float extent = max - min;
+        return extent > 0.0f ? (int) ((value - min) / extent * 1023.0f) : 0;
+    }
+
+    private static long spreadBits(int value) {
+        long bits = value & 0x3FFL;
+        bits = (bits | (bits << 16)) & 0x30000FFL;
+        bits = (bits | (bits << 8)) & 0x300F00FL;
+        bits = (bits | (bits << 4)) & 0x30C30C3L;
+        bits = (bits | (bits << 2)) & 0x9249249L;
+        return bits;
+    }
+
+    void build() {
+        if (itemCount > 0) {
+            sortSpatially(false);
+            buildSubtree(0, 0, itemCount, 0, new Bins());
+        }
+    }
+
+    /**
+     * Builds the hierarchy using the given pool, splitting large subtrees into separate tasks.
+     */
+    void build(ForkJoinPool pool) {
+        if (itemCount > 0) {
+            // The parallel sort forks its tasks into the pool it's invoked from.
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    sortSpatially(true);
+                    new SubtreeTask(0, 0, itemCount, 0).compute();
+                }
+            });
+        }
+    }
+
+    private void buildSubtree(int node, int begin, int end, int depth, Bins bins) {
+        int split = splitNode(node, begin, end, depth, bins);
+        if (split < 0) {
+            return;
+        }
+        buildSubtree(leftChildren[node], begin, split, depth + 1, bins);
+        buildSubtree(rightChildren[node], split, end, depth + 1, bins);
+        computeHeight(node);
+    }
+
+    private void computeHeight(int node) {
+        heights[node] = 1 + Math.max(heights[leftChildren[node]], heights[rightChildren[node]]);
+    }
+
+    /**
+     * Computes the bounds of the node and partitions its items. Returns the index in the item order at which the right
+     * child's items begin, or {@code -1} if the node is a leaf. Only touches the node's own range of the item order.
+     */
+    private int splitNode(int node, int begin, int end, int depth, Bins bins) {
+        computeBounds(node, begin, end);
+        if (end - begin == 1) {
+            items[node] = itemIDs[order[begin]];
+            heights[node] = 0;
+            leftChildren[node] = AABBTreeNode.INVALID_NODE_INDEX;
+            rightChildren[node] = AABBTreeNode.INVALID_NODE_INDEX;
+            return -1;
+        }
+
+        int split = depth < MAX_SAH_DEPTH && end - begin >= MIN_SAH_ITEM_COUNT ? partitionSAH(begin, end, bins) : -1;
+        if (split <= begin || split >= end) {
+            split = partitionMedian(begin, end);
+        }
+
+        items[node] = NO_ITEM;
+        leftChildren[node] = node + 1;
+        rightChildren[node] = node + 2 * (split - begin);
+        return split;
+    }
+
+    private void computeBounds(int node, int begin, int end) {
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+        for (int i = begin; i < end; i++) {
+            int offset = order[i] * BOUNDS_STRIDE;
+            minX = min(minX, itemBounds[offset]);
+            minY = min(minY, itemBounds[offset + 1]);
+            minZ = min(minZ, itemBounds[offset + 2]);
+            maxX = max(maxX, itemBounds[offset + 3]);
+            maxY = max(maxY, itemBounds[offset + 4]);
+            maxZ = max(maxZ, itemBounds[offset + 5]);
+        }
+        int offset = node * BOUNDS_STRIDE;
+        bounds[offset] = minX;
+        bounds[offset + 1] = minY;
+        bounds[offset + 2] = minZ;
+        bounds[offset + 3] = maxX;
+        bounds[offset + 4] = maxY;
+        bounds[offset + 5] = maxZ;
+    }
+
+    private int partitionSAH(int begin, int end, Bins bins) {
+        float[] centroidMin = bins.centroidMin;
+        float[] centroidMax = bins.centroidMax;
+        for (int axis = 0; axis < 3; axis++) {
+            centroidMin[axis] = Float.POSITIVE_INFINITY;
+            centroidMax[axis] = Float.NEGATIVE_INFINITY;
+        }
+        for (int i = begin; i < end; i++) {
+            int offset = order[i] * 3;
+            for (int axis = 0; axis < 3; axis++) {
+                centroidMin[axis] = min(centroidMin[axis], centroids[offset + axis]);
+                centroidMax[axis] = max(centroidMax[axis], centroids[offset + axis]);
+            }
+        }
+
+        int bestAxis = -1;
+        int bestBin = -1;
+        float bestCost = Float.POSITIVE_INFINITY;
+        for (int axis = 0; axis < 3; axis++) {
+            float extent = centroidMax[axis] - centroidMin[axis];
+            if (!(extent > 0.0f)) {
+                continue;
+            }
+            float scale = BIN_COUNT / extent;
+            bins.fill(this, begin, end, axis, centroidMin[axis], scale);
+
+            for (int bin = 0; bin < BIN_COUNT - 1; bin++) {
+                float cost = bins.leftArea[bin] * bins.leftCount[bin] + bins.rightArea[bin + 1] * bins.rightCount[bin + 1];
+                if (bins.leftCount[bin] > 0 && bins.rightCount[bin + 1] > 0 && cost < bestCost) {
+                    bestCost = cost;
+                    bestAxis = axis;
+                    bestBin = bin;
+                }
+            }
+        }
+
+        if (bestAxis < 0) {
+            return -1;
+        }
+
+        float min = centroidMin[bestAxis];
+        float scale = BIN_COUNT / (centroidMax[bestAxis] - min);
+        int i = begin;
+        int j = end - 1;
+        while (i <= j) {
+            if (binOf(order[i], bestAxis, min, scale) <= bestBin) {
+                i++;
+            } else {
+                int swap = order[i];
+                order[i] = order[j];
+                order[j] = swap;
+                j--;
+            }
+        }
+        return i;
+    }
+
+    int binOf(int item, int axis, float centroidMin, float scale) {
+        int bin = (int) ((centroids[item * 3 + axis] - centroidMin) * scale);
+        return bin < 0 ? 0 : (bin >= BIN_COUNT ? BIN_COUNT - 1 : bin);
+    }
+
+    private int partitionMedian(int begin, int end) {
+        float extent = -1.0f;
+        int axis = 0;
+        for (int candidate = 0; candidate < 3; candidate++) {
+            float min = Float.POSITIVE_INFINITY;
+            float max = Float.NEGATIVE_INFINITY;
+            for (int i = begin; i < end; i++) {
+                float centroid = centroids[order[i] * 3 + candidate];
+                min = min(min, centroid);
+                max = max(max, centroid);
+            }
+            if (max - min > extent) {
+                extent = max - min;
+                axis = candidate;
+            }
+        }
+
+        // Quickselect, so that the items before the median have centroids not greater than the ones after it.
+        int median = begin + (end - begin) / 2;
+        int low = begin;
+        int high = end - 1;
+        while (low < high) {
+            float pivot = centroids[order[(low + high) >>> 1] * 3 + axis];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (centroids[order[i] * 3 + axis] < pivot) {
+                    i++;
+                }
+                while (centroids[order[j] * 3 + axis] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int swap = order[i];
+                    order[i] = order[j];
+                    order[j] = swap;
+                    i++;
+                    j--;
+                }
+            }
+            if (median <= j) {
+                high = j;
+            } else if (median >= i) {
+                low = i;
+            } else {
+                break;
+            }
+        }
+        return median;
+    }
+
+    // Unlike Math.min and Math.max, these don't handle NaN and signed zeros, which makes them considerably cheaper.
+    static float min(float a, float b) {
+        return a < b ? a : b;
+    }
+
+    static float max(float a, float b) {
+        return a > b ? a : b;
+    }
+
+    int getNodeCount() {
+        return nodeCount;
+    }
+
+    int getLeftChild(int node) {
+        return leftChildren[node];
+    }
+
+    int getRightChild(int node) {
+        return rightChildren[node];
+    }
+
+    int getItem(int node) {
+        return items[node];
+    }
+
+    int getHeight(int node) {
+        return heights[node];
+    }
+
+    float[] getBounds() {
+        return bounds;
+    }
+
+    private final class SubtreeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int node;
+        private final int begin;
+        private final int end;
+        private final int depth;
+
+        SubtreeTask(int node, int begin, int end, int depth) {
+            this.node = node;
+            this.begin = begin;
+            this.end = end;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            Bins bins = new Bins();
+            if (end - begin < MIN_PARALLEL_ITEM_COUNT) {
+                buildSubtree(node, begin, end, depth, bins);
+                return;
+            }
+
+            int split = splitNode(node, begin, end, depth, bins);
+            if (split < 0) {
+                return;
+            }
+            invokeAll(new SubtreeTask(leftChildren[node], begin, split, depth + 1),
+                    new SubtreeTask(rightChildren[node], split, end, depth + 1));
+            computeHeight(node);
+        }
+    }
+
+    /**
+     * Scratch space used to evaluate the split candidates of a single node.
+     */
+    static final class Bins {
+        private final float[] centroidMin = new float[3];
+        private final float[] centroidMax = new float[3];
+        private final int[] counts = new int[BIN_COUNT];
+        private final float[] binBounds = new float[BIN_COUNT * BOUNDS_STRIDE];
+        private final float[] leftArea = new float[BIN_COUNT];
+        private final int[] leftCount = new int[BIN_COUNT];
+        private final float[] rightArea = new float[BIN_COUNT];
+        private final int[] rightCount = new int[BIN_COUNT];
+
+        void fill(AABBTreeBuilder builder, int begin, int end, int axis, float centroidMin, float scale) {
+            for (int bin = 0; bin < BIN_COUNT; bin++) {
+                counts[bin] = 0;
+                int offset = bin * BOUNDS_STRIDE;
+                binBounds[offset] = Float.POSITIVE_INFINITY;
+                binBounds[offset + 1] = Float.POSITIVE_INFINITY;
+                binBounds[offset + 2] = Float.POSITIVE_INFINITY;
+                binBounds[offset + 3] = Float.NEGATIVE_INFINITY;
+                binBounds[offset + 4] = Float.NEGATIVE_INFINITY;
+                binBounds[offset + 5] = Float.NEGATIVE_INFINITY;
+            }
+
+            float[] itemBounds = builder.itemBounds;
+            for (int i = begin; i < end; i++) {
+                int item = builder.order[i];
+                int bin = builder.binOf(item, axis, centroidMin, scale);
+                counts[bin]++;
+                int binOffset = bin * BOUNDS_STRIDE;
+                int itemOffset = item * BOUNDS_STRIDE;
+                binBounds[binOffset] = min(binBounds[binOffset], itemBounds[itemOffset]);
+                binBounds[binOffset + 1] = min(binBounds[binOffset + 1], itemBounds[itemOffset + 1]);
+                binBounds[binOffset + 2] = min(binBounds[binOffset + 2], itemBounds[itemOffset + 2]);
+                binBounds[binOffset + 3] = max(binBounds[binOffset + 3], itemBounds[itemOffset + 3]);
+                binBounds[binOffset + 4] = max(binBounds[binOffset + 4], itemBounds[itemOffset + 4]);
+                binBounds[binOffset + 5] = max(binBounds[binOffset + 5], itemBounds[itemOffset + 5]);
+            }
+
+            sweep(0, BIN_COUNT, 1, leftArea, leftCount);
+            sweep(BIN_COUNT - 1, -1, -1, rightArea, rightCount);
+        }
+
+        private void sweep(int from, int to, int step, float[] areas, int[] totalCounts) {
+            float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+            float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+            int count = 0;
+            for (int bin = from; bin != to; bin += step) {
+                int offset = bin * BOUNDS_STRIDE;
+                if (counts[bin] > 0) {
+                    minX = min(minX, binBounds[offset]);
+                    minY = min(minY, binBounds[offset + 1]);
+                    minZ = min(minZ, binBounds[offset + 2]);
+                    maxX = max(maxX, binBounds[offset + 3]);
+                    maxY = max(maxY, binBounds[offset + 4]);
+                    maxZ = max(maxZ, binBounds[offset + 5]);
+                    count += counts[bin];
+                }
+                totalCounts[bin] = count;
+                float width = maxX - minX;
+                float height = maxY - minY;
+                float depth = maxZ - minZ;
+                areas[bin] = count == 0 ? 0.0f : 2.0f * (width * height + width * depth + height * depth);
+            }
+        }
+    }
+}
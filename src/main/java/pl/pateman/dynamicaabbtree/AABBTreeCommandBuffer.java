@@ -0,0 +1,250 @@
+package pl.pateman.dynamicaabbtree;
+
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Collects adds, removes and updates of an {@link AABBTree}, so that they can be issued from many threads and applied
+ * later at once. Every thread records its commands in its own queue, so recording doesn't contend.
+ * <p>
+ * {@link #commit()} applies only the final state of every object: several updates of the same object are applied once,
+ * and an object that was added and then removed again never touches the tree. Large batches are applied in bulk:
+ * moved objects get their fat AABBs refreshed in place followed by a single refit of the branches, and added objects
+ * are inserted with {@link AABBTree#addAll(java.util.Collection)}.
+ * <p>
+ * Commands recorded by a single thread are applied in order. The order of commands recorded for the same object by
+ * different threads is undefined. {@link #commit()} must be called by the thread that owns the tree. The queues of
+ * threads that have terminated are released by the next commit.
+ */
+public final class AABBTreeCommandBuffer<T extends Boundable & Identifiable> {
+    // Batches that make up at least this fraction of the tree are applied in bulk.
+    private static final float BULK_FRACTION = 0.25f;
+    private static final int MIN_BULK_COUNT = 64;
+
+    private static final byte ADD = 0;
+    private static final byte UPDATE = 1;
+    private static final byte REMOVE = 2;
+
+    private final AABBTree<T> tree;
+    private final List<CommandQueue<T>> queues;
+    private final ThreadLocal<CommandQueue<T>> threadQueue;
+
+    private final LongIntHashMap pendingSlots;
+    private final CommandQueue<T> pending;
+    private final List<T> addedObjects;
+    private final Vector3f displacement;
+
+    public AABBTreeCommandBuffer(AABBTree<T> tree) {
+        if (tree == null) {
+            throw new IllegalArgumentException("A valid tree is required");
+        }
+        this.tree = tree;
+        queues = new CopyOnWriteArrayList<>();
+        threadQueue = ThreadLocal.withInitial(() -> {
+            CommandQueue<T> queue = new CommandQueue<>(Thread.currentThread());
+            queues.add(queue);
+            return queue;
+        });
+        pendingSlots = new LongIntHashMap();
+        pending = new CommandQueue<>(null);
+        addedObjects = new ArrayList<>();
+        displacement = new Vector3f();
+    }
+
+    public void add(T object) {
+        threadQueue.get().record(ADD, object, null);
+    }
+
+    public void update(T object) {
+        threadQueue.get().record(UPDATE, object, null);
+    }
+
+    /**
+     * Records an update with a predicted displacement, see {@link AABBTree#update(Boundable, Vector3fc)}. The
+     * displacement is copied.
+     */
+    public void update(T object, Vector3fc displacement) {
+        threadQueue.get().record(UPDATE, object, displacement);
+    }
+
+    public void remove(T object) {
+        threadQueue.get().record(REMOVE, object, null);
+    }
+
+    public void commit() {
+        commit(null);
+    }
+
+    /**
+     * Applies all recorded commands to the tree. If the added objects are inserted in bulk, the hierarchy is built
+     * using the given pool, which may be {@code null}.
+     */
+    public void commit(ForkJoinPool pool) {
+        for (CommandQueue<T> queue : queues) {
+            // A thread that was already dead before its queue was drained can't have recorded anything since.
+            boolean ownerAlive = queue.owner.isAlive();
+            queue.drainTo(this);
+            if (!ownerAlive) {
+                queues.remove(queue);
+            }
+        }
+
+        try {
+            int movedCount = 0;
+            for (int i = 0; i < pending.size; i++) {
+                T object = pending.getObject(i);
+                if (pending.commands[i] == REMOVE) {
+                    tree.remove(object);
+                } else if (!tree.contains(object)) {
+                    addedObjects.add(object);
+                } else {
+                    movedCount++;
+                }
+            }
+
+            int resultingSize = tree.size() + addedObjects.size();
+            boolean bulkMove = isBulk(movedCount, resultingSize);
+            for (int i = 0; i < pending.size; i++) {
+                T object = pending.getObject(i);
+                if (pending.commands[i] != REMOVE && tree.contains(object)) {
+                    applyUpdate(object, pending.getDisplacement(i, displacement), bulkMove);
+                }
+            }
+
+            // A bulk insertion rebuilds the whole hierarchy, which makes refitting it first unnecessary.
+            if (isBulk(addedObjects.size(), resultingSize)) {
+                tree.addAll(addedObjects, pool);
+                return;
+            }
+            if (bulkMove) {
+                tree.refitHierarchy();
+            }
+            for (int i = 0; i < pending.size; i++) {
+                T object = pending.getObject(i);
+                if (pending.commands[i] != REMOVE && !tree.contains(object)) {
+                    applyUpdate(object, pending.getDisplacement(i, displacement), false);
+                }
+            }
+        } finally {
+            pendingSlots.clear();
+            pending.clear();
+            addedObjects.clear();
+        }
+    }
+
+    private void applyUpdate(T object, Vector3fc objectDisplacement, boolean refitOnly) {
+        if (refitOnly) {
+            tree.refitObject(object, objectDisplacement);
+        } else if (objectDisplacement == null) {
+            tree.update(object);
+        } else {
+            tree.update(object, objectDisplacement);
+        }
+    }
+
+    int getQueueCount() {
+        return queues.size();
+    }
+
+    private boolean isBulk(int count, int treeSize) {
+        return count >= MIN_BULK_COUNT && count >= treeSize * BULK_FRACTION;
+    }
+
+    /**
+     * Coalesces a command with the commands already pending for the same object. Only the latest command matters, as
+     * adding an object that's already in the tree updates it, and updating an object that isn't adds it.
+     */
+    private void coalesce(byte command, T object, float[] displacements, int displacementOffset, boolean hasDisplacement) {
+        int slot = pendingSlots.get(object.getID());
+        if (slot == LongIntHashMap.NO_VALUE) {
+            pendingSlots.put(object.getID(), pending.size);
+            pending.append(command, object, displacements, displacementOffset, hasDisplacement);
+        } else {
+            pending.set(slot, command, object, displacements, displacementOffset, hasDisplacement);
+        }
+    }
+
+    /**
+     * A growable list of commands stored in parallel arrays.
+     */
+    private static final class CommandQueue<T extends Boundable & Identifiable> {
+        private static final int DEFAULT_CAPACITY = 16;
+
+        // The thread recording into the queue, if any.
+        private final Thread owner;
+        private byte[] commands = new byte[DEFAULT_CAPACITY];
+        private Object[] objects = new Object[DEFAULT_CAPACITY];
+        private float[] displacements = new float[DEFAULT_CAPACITY * 3];
+        private boolean[] hasDisplacement = new boolean[DEFAULT_CAPACITY];
+        private int size;
+
+        CommandQueue(Thread owner) {
+            this.owner = owner;
+        }
+
+        synchronized void record(byte command, T object, Vector3fc displacement) {
+            ensureCapacity();
+            int index = size++;
+            commands[index] = command;
+            objects[index] = object;
+            hasDisplacement[index] = displacement != null;
+            if (displacement != null) {
+                displacements[index * 3] = displacement.x();
+                displacements[index * 3 + 1] = displacement.y();
+                displacements[index * 3 + 2] = displacement.z();
+            }
+        }
+
+        synchronized void drainTo(AABBTreeCommandBuffer<T> buffer) {
+            for (int i = 0; i < size; i++) {
+                buffer.coalesce(commands[i], getObject(i), displacements, i * 3, hasDisplacement[i]);
+            }
+            clear();
+        }
+
+        void append(byte command, T object, float[] source, int sourceOffset, boolean sourceHasDisplacement) {
+            ensureCapacity();
+            set(size++, command, object, source, sourceOffset, sourceHasDisplacement);
+        }
+
+        void set(int index, byte command, T object, float[] source, int sourceOffset, boolean sourceHasDisplacement) {
+            commands[index] = command;
+            objects[index] = object;
+            hasDisplacement[index] = sourceHasDisplacement;
+            System.arraycopy(source, sourceOffset, displacements, index * 3, 3);
+        }
+
+        private void ensureCapacity() {
+            if (size == commands.length) {
+                int capacity = size * 2;
+                commands = Arrays.copyOf(commands, capacity);
+                objects = Arrays.copyOf(objects, capacity);
+                displacements = Arrays.copyOf(displacements, capacity * 3);
+                hasDisplacement = Arrays.copyOf(hasDisplacement, capacity);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        T getObject(int index) {
+            return (T) objects[index];
+        }
+
+        Vector3fc getDisplacement(int index, Vector3f dest) {
+            if (!hasDisplacement[index]) {
+                return null;
+            }
+            return dest.set(displacements[index * 3], displacements[index * 3 + 1], displacements[index * 3 + 2]);
+        }
+
+        void clear() {
+            Arrays.fill(objects, 0, size, null);
+            size = 0;
+        }
+    }
+}
@@ -1,6 +1,10 @@
 package pl.pateman.dynamicaabbtree;
 
 import org.joml.AABBf;
+import org.joml.Vector3fc;
+
+import static pl.pateman.dynamicaabbtree.AABBUtils.expand;
+import static pl.pateman.dynamicaabbtree.AABBUtils.extend;
 
 final class AABBTreeNode<E extends Boundable> {
     private static final int MAX_NUM_OF_CHILDREN_PER_NODE = 2;
@@ -14,6 +18,10 @@ final class AABBTreeNode<E extends Boundable> {
     private int parent;
     private int index;
     private int height;
+    private boolean moved;
+    // Whether the index of the node is in the move buffer. Unlike the moved flag, this survives reusing the node, as
+    // the buffer may still hold the index of the object that used the node before.
+    private boolean queued;
     private E data;
 
     AABBTreeNode() {
@@ -50,9 +58,14 @@ final class AABBTreeNode<E extends Boundable> {
         if (data == null) {
             return;
         }
-        AABBf dataAABB = data.getAABB(aabb);
-        aabb.setMin(dataAABB.minX - margin, dataAABB.minY - margin, dataAABB.minZ - margin);
-        aabb.setMax(dataAABB.maxX + margin, dataAABB.maxY + margin, dataAABB.maxZ + margin);
+        expand(data.getAABB(aabb), margin);
+    }
+
+    void computeAABBWithMargin(float margin, Vector3fc displacement) {
+        if (data == null) {
+            return;
+        }
+        extend(expand(data.getAABB(aabb), margin), displacement);
     }
 
     void resetForReuse() {
@@ -61,12 +74,17 @@ final class AABBTreeNode<E extends Boundable> {
         aabb.setMax(Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY);
         setParent(INVALID_NODE_INDEX);
         setHeight(0);
+        setMoved(false);
         setData(null);
 
         aabb.setMin(Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY);
         aabb.setMax(Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY);
     }
 
+    int getChild(int whichChild) {
+        return children[whichChild];
+    }
+
     int getLeftChild() {
         return children[LEFT_CHILD];
     }
@@ -103,6 +121,22 @@ final class AABBTreeNode<E extends Boundable> {
         this.height = height;
     }
 
+    boolean isMoved() {
+        return moved;
+    }
+
+    void setMoved(boolean moved) {
+        this.moved = moved;
+    }
+
+    boolean isQueued() {
+        return queued;
+    }
+
+    void setQueued(boolean queued) {
+        this.queued = queued;
+    }
+
     E getData() {
         return data;
     }
@@ -0,0 +1,123 @@
+package pl.pateman.dynamicaabbtree;
+
+import org.joml.AABBf;
+
+import java.util.BitSet;
+import java.util.List;
+
+import static pl.pateman.dynamicaabbtree.AABBTreeNode.INVALID_NODE_INDEX;
+
+/**
+ * An immutable copy of the state of an {@link AABBTree}, made by {@link AABBTree#snapshot()}. The nodes keep the
+ * indices they have in the tree and are copied in fixed-size pages. A new snapshot copies only the pages holding nodes
+ * that were changed since the previous one and shares all other pages with it, so after a few updates taking a
+ * snapshot costs little more than copying the changed paths. Pages are never modified once made, so a snapshot can be
+ * queried from many threads at once while the tree is being modified.
+ */
+public final class AABBTreeSnapshot<T extends Boundable & Identifiable> extends ReadOnlyAABBTree<T> {
+    static final int PAGE_SHIFT = 7;
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int BOUNDS_STRIDE = 6;
+
+    private final Page[] pages;
+    private final int root;
+    private final int size;
+
+    /**
+     * Copies the given tree. Pages which aren't marked as changed are taken from the previous snapshot, if given.
+     */
+    AABBTreeSnapshot(AABBTree<T> tree, AABBTreeSnapshot<T> previous, BitSet changedPages) {
+        List<AABBTreeNode<T>> nodes = tree.getNodes();
+        root = tree.getRoot();
+        size = tree.size();
+
+        pages = new Page[(nodes.size() + PAGE_MASK) >>> PAGE_SHIFT];
+        for (int i = 0; i < pages.length; i++) {
+            if (previous != null && i < previous.pages.length && !changedPages.get(i)) {
+                pages[i] = previous.pages[i];
+            } else {
+                pages[i] = new Page(nodes, i << PAGE_SHIFT);
+            }
+        }
+    }
+
+    private static final class Page {
+        private final float[] bounds;
+        private final int[] leftChildren;
+        private final int[] rightChildren;
+        private final Object[] data;
+
+        private <T extends Boundable> Page(List<AABBTreeNode<T>> nodes, int firstNode) {
+            bounds = new float[PAGE_SIZE * BOUNDS_STRIDE];
+            leftChildren = new int[PAGE_SIZE];
+            rightChildren = new int[PAGE_SIZE];
+            data = new Object[PAGE_SIZE];
+
+            int nodeCount = Math.min(PAGE_SIZE, nodes.size() - firstNode);
+            for (int i = 0; i < nodeCount; i++) {
+                AABBTreeNode<T> node = nodes.get(firstNode + i);
+                AABBf aabb = node.getAABB();
+                int offset = i * BOUNDS_STRIDE;
+                bounds[offset] = aabb.minX;
+                bounds[offset + 1] = aabb.minY;
+                bounds[offset + 2] = aabb.minZ;
+                bounds[offset + 3] = aabb.maxX;
+                bounds[offset + 4] = aabb.maxY;
+                bounds[offset + 5] = aabb.maxZ;
+                leftChildren[i] = node.getLeftChild();
+                rightChildren[i] = node.getRightChild();
+                data[i] = node.getData();
+            }
+        }
+    }
+
+    @Override
+    void pushRoot(IntStack stack) {
+        stack.push(root);
+    }
+
+    @Override
+    int popNode(IntStack stack, AABBf dest) {
+        int node = stack.pop();
+        float[] bounds = pages[node >>> PAGE_SHIFT].bounds;
+        int offset = (node & PAGE_MASK) * BOUNDS_STRIDE;
+        dest.setMin(bounds[offset], bounds[offset + 1], bounds[offset + 2]);
+        dest.setMax(bounds[offset + 3], bounds[offset + 4], bounds[offset + 5]);
+        return node;
+    }
+
+    @Override
+    void pushChildren(int node, AABBf nodeAABB, IntStack stack) {
+        Page page = pages[node >>> PAGE_SHIFT];
+        stack.push(page.rightChildren[node & PAGE_MASK]);
+        stack.push(page.leftChildren[node & PAGE_MASK]);
+    }
+
+    @Override
+    boolean isLeaf(int node) {
+        return pages[node >>> PAGE_SHIFT].leftChildren[node & PAGE_MASK] == INVALID_NODE_INDEX;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    T getObject(int node) {
+        return (T) pages[node >>> PAGE_SHIFT].data[node & PAGE_MASK];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    int getPageCount() {
+        return pages.length;
+    }
+
+    /**
+     * Returns whether the given page is shared with the other snapshot.
+     */
+    boolean sharesPage(AABBTreeSnapshot<T> other, int page) {
+        return page < other.pages.length && pages[page] == other.pages[page];
+    }
+}
@@ -1,6 +1,8 @@
 package pl.pateman.dynamicaabbtree;
 
 import org.joml.AABBf;
+import org.joml.Rayf;
+import org.joml.Vector3fc;
 
 /**
  * Created by pateman.
@@ -29,4 +31,88 @@ public final class AABBUtils {
     final float depth = getDepth(aabb);
     return 2.0f * (width * height + width * depth + height * depth);
   }
+
+  public static boolean containsAABB(AABBf outer, AABBf inner) {
+    return inner.minX >= outer.minX && inner.minY >= outer.minY && inner.minZ >= outer.minZ &&
+        inner.maxX <= outer.maxX && inner.maxY <= outer.maxY && inner.maxZ <= outer.maxZ;
+  }
+
+  public static float getDistanceSquared(AABBf aabb, Vector3fc point) {
+    final float dx = Math.max(Math.max(aabb.minX - point.x(), point.x() - aabb.maxX), 0.0f);
+    final float dy = Math.max(Math.max(aabb.minY - point.y(), point.y() - aabb.maxY), 0.0f);
+    final float dz = Math.max(Math.max(aabb.minZ - point.z(), point.z() - aabb.maxZ), 0.0f);
+    return dx * dx + dy * dy + dz * dz;
+  }
+
+  /**
+   * Returns the distance along the ray at which it enters the AABB, which is zero if the ray starts inside of it, or
+   * positive infinity if the ray misses it.
+   */
+  public static float getRayEntryDistance(AABBf aabb, Rayf ray) {
+    return getRayEntryDistance(aabb, ray.oX, ray.oY, ray.oZ, 1.0f / ray.dX, 1.0f / ray.dY, 1.0f / ray.dZ);
+  }
+
+  static float getRayEntryDistance(AABBf aabb, float originX, float originY, float originZ, float inverseDirectionX,
+                                   float inverseDirectionY, float inverseDirectionZ) {
+    float near = 0.0f;
+    float far = Float.POSITIVE_INFINITY;
+
+    // An axis along which the ray doesn't move is hit only if the origin lies between the slab's planes.
+    if (Float.isInfinite(inverseDirectionX)) {
+      if (originX < aabb.minX || originX > aabb.maxX) {
+        return Float.POSITIVE_INFINITY;
+      }
+    } else {
+      final float t1 = (aabb.minX - originX) * inverseDirectionX;
+      final float t2 = (aabb.maxX - originX) * inverseDirectionX;
+      near = Math.max(near, Math.min(t1, t2));
+      far = Math.min(far, Math.max(t1, t2));
+    }
+    if (Float.isInfinite(inverseDirectionY)) {
+      if (originY < aabb.minY || originY > aabb.maxY) {
+        return Float.POSITIVE_INFINITY;
+      }
+    } else {
+      final float t1 = (aabb.minY - originY) * inverseDirectionY;
+      final float t2 = (aabb.maxY - originY) * inverseDirectionY;
+      near = Math.max(near, Math.min(t1, t2));
+      far = Math.min(far, Math.max(t1, t2));
+    }
+    if (Float.isInfinite(inverseDirectionZ)) {
+      if (originZ < aabb.minZ || originZ > aabb.maxZ) {
+        return Float.POSITIVE_INFINITY;
+      }
+    } else {
+      final float t1 = (aabb.minZ - originZ) * inverseDirectionZ;
+      final float t2 = (aabb.maxZ - originZ) * inverseDirectionZ;
+      near = Math.max(near, Math.min(t1, t2));
+      far = Math.min(far, Math.max(t1, t2));
+    }
+    return near <= far ? near : Float.POSITIVE_INFINITY;
+  }
+
+  public static AABBf expand(AABBf aabb, float margin) {
+    aabb.setMin(aabb.minX - margin, aabb.minY - margin, aabb.minZ - margin);
+    aabb.setMax(aabb.maxX + margin, aabb.maxY + margin, aabb.maxZ + margin);
+    return aabb;
+  }
+
+  public static AABBf extend(AABBf aabb, Vector3fc displacement) {
+    if (displacement.x() < 0.0f) {
+      aabb.minX += displacement.x();
+    } else {
+      aabb.maxX += displacement.x();
+    }
+    if (displacement.y() < 0.0f) {
+      aabb.minY += displacement.y();
+    } else {
+      aabb.maxY += displacement.y();
+    }
+    if (displacement.z() < 0.0f) {
+      aabb.minZ += displacement.z();
+    } else {
+      aabb.maxZ += displacement.z();
+    }
+    return aabb;
+  }
 }
@@ -0,0 +1,84 @@
+package pl.pateman.dynamicaabbtree;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs a batch of independent queries in chunks. The calling thread processes chunks too, so the batch completes even
+ * if the executor is busy, or when it's called from one of the executor's own threads.
+ */
+final class BatchQueryRunner {
+    private static final int QUERIES_PER_CHUNK = 32;
+
+    private BatchQueryRunner() {
+
+    }
+
+    static void run(int queryCount, Executor executor, IntConsumer query) {
+        int chunkCount = (queryCount + QUERIES_PER_CHUNK - 1) / QUERIES_PER_CHUNK;
+        if (executor == null || chunkCount <= 1) {
+            for (int i = 0; i < queryCount; i++) {
+                query.accept(i);
+            }
+            return;
+        }
+
+        AtomicInteger nextChunk = new AtomicInteger();
+        CountDownLatch remainingChunks = new CountDownLatch(chunkCount);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Runnable worker = () -> processChunks(queryCount, chunkCount, query, nextChunk, remainingChunks, failure);
+
+        int helperCount = Math.min(chunkCount - 1, Runtime.getRuntime().availableProcessors());
+        for (int i = 0; i < helperCount; i++) {
+            try {
+                executor.execute(worker);
+            } catch (RejectedExecutionException e) {
+                // The chunks that nobody picks up are processed by the calling thread.
+                break;
+            }
+        }
+        worker.run();
+
+        try {
+            remainingChunks.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the batch to complete", e);
+        }
+
+        Throwable throwable = failure.get();
+        if (throwable instanceof RuntimeException) {
+            throw (RuntimeException) throwable;
+        }
+        if (throwable instanceof Error) {
+            throw (Error) throwable;
+        }
+        if (throwable != null) {
+            throw new IllegalStateException("A query in the batch has failed", throwable);
+        }
+    }
+
+    private static void processChunks(int queryCount, int chunkCount, IntConsumer query, AtomicInteger nextChunk,
+                                      CountDownLatch remainingChunks, AtomicReference<Throwable> failure) {
+        int chunk;
+        while ((chunk = nextChunk.getAndIncrement()) < chunkCount) {
+            try {
+                // Once a query has failed, the remaining chunks are only counted down.
+                if (failure.get() == null) {
+                    int end = Math.min(queryCount, (chunk + 1) * QUERIES_PER_CHUNK);
+                    for (int i = chunk * QUERIES_PER_CHUNK; i < end; i++) {
+                        query.accept(i);
+                    }
+                }
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            } finally {
+                remainingChunks.countDown();
+            }
+        }
+    }
+}
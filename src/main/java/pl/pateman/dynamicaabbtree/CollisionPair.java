@@ -1,7 +1,5 @@
 package pl.pateman.dynamicaabbtree;
 
-import java.util.Objects;
-
 public final class CollisionPair<T extends Boundable & Identifiable>
 {
    private final T objectA;
@@ -35,13 +33,16 @@ public final class CollisionPair<T extends Boundable & Identifiable>
          return false;
       }
       CollisionPair<?> that = (CollisionPair<?>) o;
-      return (Objects.equals(objectA.getID(), that.objectA.getID()) || Objects.equals(objectA.getID(), that.objectB.getID())) &&
-         (Objects.equals(objectB.getID(), that.objectB.getID()) || Objects.equals(objectB.getID(), that.objectA.getID()));
+      long idA = objectA.getID();
+      long idB = objectB.getID();
+      long thatIdA = that.objectA.getID();
+      long thatIdB = that.objectB.getID();
+      return (idA == thatIdA && idB == thatIdB) || (idA == thatIdB && idB == thatIdA);
    }
 
    @Override
    public int hashCode()
    {
-      return Objects.hash(objectA.getID(), objectB.getID()) ^ Objects.hash(objectB.getID(), objectA.getID());
+      return Long.hashCode(objectA.getID()) ^ Long.hashCode(objectB.getID());
    }
 }
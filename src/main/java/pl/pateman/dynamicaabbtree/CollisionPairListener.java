@@ -0,0 +1,8 @@
+package pl.pateman.dynamicaabbtree;
+
+public interface CollisionPairListener<T extends Boundable & Identifiable>
+{
+   void beginOverlap(CollisionPair<T> pair);
+
+   void endOverlap(CollisionPair<T> pair);
+}
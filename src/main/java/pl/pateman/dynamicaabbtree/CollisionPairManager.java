@@ -0,0 +1,99 @@
+package pl.pateman.dynamicaabbtree;
+
+import org.joml.AABBf;
+
+import java.util.function.BiConsumer;
+
+/**
+ * Keeps the set of overlapping pairs of an {@link AABBTree} between updates and reports only the pairs that started or
+ * stopped overlapping. Only the objects that were added or reinserted since the last update are queried, so the tree's
+ * move tracking is enabled by the manager.
+ * <p>
+ * Pairs are stored in a primitive hash map keyed by the IDs of both objects, so updates in which no pairs begin don't
+ * allocate. A pair that began is reported with the same {@link CollisionPair} instance when it ends.
+ */
+public final class CollisionPairManager<T extends Boundable & Identifiable> {
+    private final AABBTree<T> tree;
+    private final CollisionFilter<T> filter;
+    private final LongPairHashMap<CollisionPair<T>> pairs;
+    private final BiConsumer<T, T> pairConsumer;
+
+    private CollisionPairListener<T> listener;
+    private boolean fullUpdateRequired;
+
+    public CollisionPairManager(AABBTree<T> tree) {
+        this(tree, new DefaultCollisionFilter<>());
+    }
+
+    public CollisionPairManager(AABBTree<T> tree, CollisionFilter<T> filter) {
+        if (tree == null) {
+            throw new IllegalArgumentException("A valid tree is required");
+        }
+        if (filter == null) {
+            throw new IllegalArgumentException("A valid collision filter is required");
+        }
+        this.tree = tree;
+        this.filter = filter;
+        pairs = new LongPairHashMap<>();
+        pairConsumer = this::addPair;
+        tree.setMoveTrackingEnabled(true);
+        fullUpdateRequired = true;
+    }
+
+    public void updatePairs(CollisionPairListener<T> listener) {
+        for (int slot = 0; slot < pairs.capacity(); slot++) {
+            CollisionPair<T> pair = pairs.valueAt(slot);
+            if (pair != null && !stillOverlaps(pair)) {
+                pairs.removeAt(slot);
+                listener.endOverlap(pair);
+            }
+        }
+
+        this.listener = listener;
+        try {
+            // Objects added before the manager existed were never tracked, so the first update has to find all pairs.
+            if (fullUpdateRequired) {
+                tree.detectCollisionPairs(filter, pairConsumer);
+                tree.clearMoveBuffer();
+                fullUpdateRequired = false;
+            } else {
+                tree.detectMovedCollisionPairs(filter, pairConsumer);
+            }
+        } finally {
+            this.listener = null;
+        }
+    }
+
+    private void addPair(T objectA, T objectB) {
+        long idA = objectA.getID();
+        long idB = objectB.getID();
+        if (pairs.containsKey(idA, idB)) {
+            return;
+        }
+        CollisionPair<T> pair = new CollisionPair<>(objectA, objectB);
+        pairs.put(idA, idB, pair);
+        listener.beginOverlap(pair);
+    }
+
+    private boolean stillOverlaps(CollisionPair<T> pair) {
+        AABBf aabbA = tree.getFatAABB(pair.getObjectA());
+        AABBf aabbB = tree.getFatAABB(pair.getObjectB());
+        return aabbA != null && aabbB != null && aabbA.testAABB(aabbB);
+    }
+
+    public boolean isOverlapping(T objectA, T objectB) {
+        return pairs.containsKey(objectA.getID(), objectB.getID());
+    }
+
+    public int getPairCount() {
+        return pairs.size();
+    }
+
+    /**
+     * Forgets all pairs without reporting them. The next update reports every overlapping pair again.
+     */
+    public void clear() {
+        pairs.clear();
+        fullUpdateRequired = true;
+    }
+}
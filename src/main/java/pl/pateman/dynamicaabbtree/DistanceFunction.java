@@ -0,0 +1,13 @@
+package pl.pateman.dynamicaabbtree;
+
+import org.joml.Vector3fc;
+
+/**
+ * Computes the exact distance between an object and a point, which is used to order the results of nearest neighbour
+ * queries. The distance must not be smaller than the distance between the point and the object's AABB.
+ */
+@FunctionalInterface
+public interface DistanceFunction<T extends Boundable & Identifiable>
+{
+   float getDistance(T object, Vector3fc point);
+}
@@ -0,0 +1,158 @@
+package pl.pateman.dynamicaabbtree;
+
+import org.joml.AABBf;
+
+import java.util.List;
+
+import static java.lang.Math.max;
+import static pl.pateman.dynamicaabbtree.AABBTreeNode.INVALID_NODE_INDEX;
+
+/**
+ * A read-only copy of an {@link AABBTree} which keeps its nodes in flat primitive arrays (structure of arrays) instead
+ * of separate node objects. The nodes are renumbered in depth-first order, so the traversal walks the arrays mostly
+ * front to back. Objects that are moved after the copy was made are not reflected in it. Queries can be run from many
+ * threads at once.
+ */
+public final class FlatAABBTree<T extends Boundable & Identifiable> extends ReadOnlyAABBTree<T> {
+    static final int BOUNDS_STRIDE = 6;
+
+    private final float[] bounds;
+    private final int[] leftChildren;
+    private final int[] rightChildren;
+    private final int[] parents;
+    private final int[] heights;
+    private final Object[] data;
+    private final int nodeCount;
+    private final int size;
+
+    FlatAABBTree(AABBTree<T> tree) {
+        List<AABBTreeNode<T>> nodes = tree.getNodes();
+        int root = tree.getRoot();
+        size = tree.size();
+        nodeCount = root == INVALID_NODE_INDEX ? 0 : 2 * size - 1;
+
+        bounds = new float[nodeCount * BOUNDS_STRIDE];
+        leftChildren = new int[nodeCount];
+        rightChildren = new int[nodeCount];
+        parents = new int[nodeCount];
+        heights = new int[nodeCount];
+        data = new Object[nodeCount];
+
+        if (nodeCount == 0) {
+            return;
+        }
+
+        // Pairs of (source node, flat parent) waiting to be copied. Right children are pushed first, so left children
+        // always directly follow their parents.
+        IntStack stack = new IntStack();
+        stack.push(root);
+        stack.push(INVALID_NODE_INDEX);
+
+        int next = 0;
+        while (!stack.isEmpty()) {
+            int parent = stack.pop();
+            AABBTreeNode<T> node = nodes.get(stack.pop());
+            int flatIndex = next++;
+
+            AABBf aabb = node.getAABB();
+            int offset = flatIndex * BOUNDS_STRIDE;
+            bounds[offset] = aabb.minX;
+            bounds[offset + 1] = aabb.minY;
+            bounds[offset + 2] = aabb.minZ;
+            bounds[offset + 3] = aabb.maxX;
+            bounds[offset + 4] = aabb.maxY;
+            bounds[offset + 5] = aabb.maxZ;
+            parents[flatIndex] = parent;
+            leftChildren[flatIndex] = INVALID_NODE_INDEX;
+            rightChildren[flatIndex] = INVALID_NODE_INDEX;
+
+            if (parent != INVALID_NODE_INDEX) {
+                if (leftChildren[parent] == INVALID_NODE_INDEX) {
+                    leftChildren[parent] = flatIndex;
+                } else {
+                    rightChildren[parent] = flatIndex;
+                }
+            }
+
+            if (node.isLeaf()) {
+                data[flatIndex] = node.getData();
+            } else {
+                stack.push(node.getRightChild());
+                stack.push(flatIndex);
+                stack.push(node.getLeftChild());
+                stack.push(flatIndex);
+            }
+        }
+
+        // Children are always stored after their parents, so the heights can be computed in a single backward pass.
+        for (int i = nodeCount - 1; i >= 0; i--) {
+            if (leftChildren[i] != INVALID_NODE_INDEX) {
+                heights[i] = 1 + max(heights[leftChildren[i]], heights[rightChildren[i]]);
+            }
+        }
+    }
+
+    @Override
+    void pushRoot(IntStack stack) {
+        stack.push(0);
+    }
+
+    @Override
+    int popNode(IntStack stack, AABBf dest) {
+        int node = stack.pop();
+        int offset = node * BOUNDS_STRIDE;
+        dest.setMin(bounds[offset], bounds[offset + 1], bounds[offset + 2]);
+        dest.setMax(bounds[offset + 3], bounds[offset + 4], bounds[offset + 5]);
+        return node;
+    }
+
+    @Override
+    void pushChildren(int node, AABBf nodeAABB, IntStack stack) {
+        stack.push(rightChildren[node]);
+        stack.push(leftChildren[node]);
+    }
+
+    @Override
+    boolean isLeaf(int node) {
+        return leftChildren[node] == INVALID_NODE_INDEX;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    T getObject(int node) {
+        return (T) data[node];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    int getNodeCount() {
+        return nodeCount;
+    }
+
+    float[] getBounds() {
+        return bounds;
+    }
+
+    int[] getLeftChildren() {
+        return leftChildren;
+    }
+
+    int[] getRightChildren() {
+        return rightChildren;
+    }
+
+    int[] getParents() {
+        return parents;
+    }
+
+    int[] getHeights() {
+        return heights;
+    }
+
+    Object[] getData() {
+        return data;
+    }
+}
@@ -0,0 +1,83 @@
+package pl.pateman.dynamicaabbtree;
+
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of {@code int} values ordered by {@code float} keys, stored in primitive arrays.
+ */
+final class FloatIntHeap {
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private float[] keys;
+    private int[] values;
+    private int size;
+
+    FloatIntHeap() {
+        keys = new float[DEFAULT_CAPACITY];
+        values = new int[DEFAULT_CAPACITY];
+    }
+
+    void push(float key, int value) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+
+        int index = size++;
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (keys[parent] <= key) {
+                break;
+            }
+            keys[index] = keys[parent];
+            values[index] = values[parent];
+            index = parent;
+        }
+        keys[index] = key;
+        values[index] = value;
+    }
+
+    float peekKey() {
+        return keys[0];
+    }
+
+    int pop() {
+        int top = values[0];
+        size--;
+        if (size > 0) {
+            siftDown(keys[size], values[size]);
+        }
+        return top;
+    }
+
+    private void siftDown(float key, int value) {
+        int index = 0;
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            if (child + 1 < size && keys[child + 1] < keys[child]) {
+                child++;
+            }
+            if (key <= keys[child]) {
+                break;
+            }
+            keys[index] = keys[child];
+            values[index] = values[child];
+            index = child;
+        }
+        keys[index] = key;
+        values[index] = value;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        size = 0;
+    }
+}
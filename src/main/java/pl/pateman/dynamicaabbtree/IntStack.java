@@ -0,0 +1,59 @@
+package pl.pateman.dynamicaabbtree;
+
+import java.util.Arrays;
+
+import static java.lang.Math.max;
+
+final class IntStack {
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private int[] elements;
+    private int size;
+
+    IntStack() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    IntStack(int initialCapacity) {
+        elements = new int[max(initialCapacity, 1)];
+    }
+
+    void push(int value) {
+        if (size == elements.length) {
+            elements = Arrays.copyOf(elements, size * 2);
+        }
+        elements[size++] = value;
+    }
+
+    int pop() {
+        return elements[--size];
+    }
+
+    int peek() {
+        return elements[size - 1];
+    }
+
+    int get(int index) {
+        return elements[index];
+    }
+
+    void set(int index, int value) {
+        elements[index] = value;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void truncate(int newSize) {
+        size = newSize;
+    }
+
+    void clear() {
+        size = 0;
+    }
+}
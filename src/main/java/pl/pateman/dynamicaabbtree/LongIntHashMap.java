@@ -0,0 +1,139 @@
+package pl.pateman.dynamicaabbtree;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map from {@code long} keys to non-negative {@code int} values, which doesn't box keys or
+ * values. Uses linear probing with backward-shift deletion, so removals don't leave tombstones behind.
+ */
+final class LongIntHashMap {
+    static final int NO_VALUE = -1;
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+
+    LongIntHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    LongIntHashMap(int initialCapacity) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity < initialCapacity * 2) {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, NO_VALUE);
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int findSlot(long key) {
+        int mask = values.length - 1;
+        int slot = hash(key) & mask;
+        while (values[slot] != NO_VALUE) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    int get(long key) {
+        int slot = findSlot(key);
+        return slot < 0 ? NO_VALUE : values[slot];
+    }
+
+    boolean containsKey(long key) {
+        return findSlot(key) >= 0;
+    }
+
+    int put(long key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Only non-negative values are supported");
+        }
+        if ((size + 1) * 2 > values.length) {
+            resize(values.length * 2);
+        }
+
+        int mask = values.length - 1;
+        int slot = hash(key) & mask;
+        while (values[slot] != NO_VALUE) {
+            if (keys[slot] == key) {
+                int previous = values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+        return NO_VALUE;
+    }
+
+    int remove(long key) {
+        int slot = findSlot(key);
+        if (slot < 0) {
+            return NO_VALUE;
+        }
+        int previous = values[slot];
+        size--;
+
+        // Shift back the entries which would no longer be reachable through the emptied slot.
+        int mask = values.length - 1;
+        int empty = slot;
+        int current = slot;
+        while (true) {
+            current = (current + 1) & mask;
+            if (values[current] == NO_VALUE) {
+                break;
+            }
+            int home = hash(keys[current]) & mask;
+            boolean reachable = empty <= current ? (empty < home && home <= current) : (empty < home || home <= current);
+            if (!reachable) {
+                keys[empty] = keys[current];
+                values[empty] = values[current];
+                empty = current;
+            }
+        }
+        values[empty] = NO_VALUE;
+        return previous;
+    }
+
+    private void resize(int newCapacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[newCapacity];
+        values = new int[newCapacity];
+        Arrays.fill(values, NO_VALUE);
+
+        int mask = newCapacity - 1;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] == NO_VALUE) {
+                continue;
+            }
+            int slot = hash(oldKeys[i]) & mask;
+            while (values[slot] != NO_VALUE) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        Arrays.fill(values, NO_VALUE);
+        size = 0;
+    }
+}
@@ -0,0 +1,175 @@
+package pl.pateman.dynamicaabbtree;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map keyed by an unordered pair of {@code long} values. Keys are stored in primitive arrays,
+ * so lookups don't allocate. Removed entries leave tombstones, which makes removing entries while iterating over the
+ * slots safe.
+ */
+final class LongPairHashMap<V> {
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final Object TOMBSTONE = new Object();
+
+    private long[] keysA;
+    private long[] keysB;
+    private Object[] values;
+    private int size;
+    private int usedSlots;
+
+    LongPairHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    LongPairHashMap(int initialCapacity) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity < initialCapacity * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keysA = new long[capacity];
+        keysB = new long[capacity];
+        values = new Object[capacity];
+        size = 0;
+        usedSlots = 0;
+    }
+
+    static int hash(long a, long b) {
+        long h = a * 0x9E3779B97F4A7C15L ^ b;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    private int findSlot(long a, long b) {
+        int mask = values.length - 1;
+        int slot = hash(a, b) & mask;
+        while (true) {
+            Object value = values[slot];
+            if (value == null) {
+                return -1;
+            }
+            if (value != TOMBSTONE && keysA[slot] == a && keysB[slot] == b) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(long a, long b) {
+        if (a > b) {
+            return get(b, a);
+        }
+        int slot = findSlot(a, b);
+        return slot < 0 ? null : (V) values[slot];
+    }
+
+    boolean containsKey(long a, long b) {
+        return get(a, b) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V put(long a, long b, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Null values are not supported");
+        }
+        if (a > b) {
+            return put(b, a, value);
+        }
+
+        int existing = findSlot(a, b);
+        if (existing >= 0) {
+            V previous = (V) values[existing];
+            values[existing] = value;
+            return previous;
+        }
+
+        if ((usedSlots + 1) * 2 > values.length) {
+            rehash(size * 4 > values.length ? values.length * 2 : values.length);
+        }
+
+        int mask = values.length - 1;
+        int slot = hash(a, b) & mask;
+        while (values[slot] != null && values[slot] != TOMBSTONE) {
+            slot = (slot + 1) & mask;
+        }
+        if (values[slot] == null) {
+            usedSlots++;
+        }
+        keysA[slot] = a;
+        keysB[slot] = b;
+        values[slot] = value;
+        size++;
+        return null;
+    }
+
+    V remove(long a, long b) {
+        if (a > b) {
+            return remove(b, a);
+        }
+        int slot = findSlot(a, b);
+        return slot < 0 ? null : removeAt(slot);
+    }
+
+    @SuppressWarnings("unchecked")
+    V removeAt(int slot) {
+        V previous = (V) values[slot];
+        values[slot] = TOMBSTONE;
+        size--;
+        return previous;
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldKeysA = keysA;
+        long[] oldKeysB = keysB;
+        Object[] oldValues = values;
+        allocate(newCapacity);
+
+        int mask = newCapacity - 1;
+        for (int i = 0; i < oldValues.length; i++) {
+            Object value = oldValues[i];
+            if (value == null || value == TOMBSTONE) {
+                continue;
+            }
+            int slot = hash(oldKeysA[i], oldKeysB[i]) & mask;
+            while (values[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keysA[slot] = oldKeysA[i];
+            keysB[slot] = oldKeysB[i];
+            values[slot] = value;
+            size++;
+            usedSlots++;
+        }
+    }
+
+    /**
+     * Returns the number of slots, which can be iterated over with {@link #valueAt(int)}.
+     */
+    int capacity() {
+        return values.length;
+    }
+
+    @SuppressWarnings("unchecked")
+    V valueAt(int slot) {
+        Object value = values[slot];
+        return value == TOMBSTONE ? null : (V) value;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+        usedSlots = 0;
+    }
+}
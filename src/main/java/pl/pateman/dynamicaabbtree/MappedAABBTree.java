@@ -0,0 +1,234 @@
+package pl.pateman.dynamicaabbtree;
+
+import org.joml.AABBf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.LongFunction;
+
+import static pl.pateman.dynamicaabbtree.AABBTreeNode.INVALID_NODE_INDEX;
+
+/**
+ * A read-only tree which is queried directly from a buffer written by {@link #write(AABBTree, WritableByteChannel)},
+ * usually a memory-mapped file. Nothing is copied or walked when the tree is loaded, only the header is checked, so even
+ * very large trees are available instantly and a mapped file can be shared by several processes through the page cache.
+ * Buffers with an invalid header are rejected with an {@link IllegalArgumentException}. The links between the nodes are
+ * checked by the queries as they follow them, which fail with an {@link IllegalStateException} on a corrupt link, and
+ * {@link #validate()} checks the whole tree up front. The buffer stores only the IDs of the objects, which are resolved
+ * through the given lookup whenever a query hits them. Objects for which the lookup returns {@code null} are skipped.
+ * Queries can be run from many threads at once.
+ * <p>
+ * The buffer is little-endian and consists of a header (magic, version, node count, object count), the nodes in
+ * depth-first order (six floats of bounds followed by the index of the right child for branches or the bitwise
+ * complement of the object index for leaves), padding to eight bytes, and the IDs of the objects.
+ */
+public final class MappedAABBTree<T extends Boundable & Identifiable> extends ReadOnlyAABBTree<T> {
+    static final int MAGIC = 0x42424141;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int NODE_SIZE = 7 * 4;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final ByteBuffer buffer;
+    private final LongFunction<T> lookup;
+    private final int nodeCount;
+    private final int size;
+    private final long idsOffset;
+
+    public MappedAABBTree(ByteBuffer buffer, LongFunction<T> lookup) {
+        if (buffer == null || lookup == null) {
+            throw new IllegalArgumentException("A valid buffer and lookup are required");
+        }
+        this.buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        this.lookup = lookup;
+        if (this.buffer.capacity() < HEADER_SIZE || this.buffer.getInt(0) != MAGIC) {
+            throw new IllegalArgumentException("The buffer doesn't contain a tree");
+        }
+        if (this.buffer.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("Unsupported tree version " + this.buffer.getInt(4));
+        }
+        nodeCount = this.buffer.getInt(8);
+        size = this.buffer.getInt(12);
+        if (size < 0 || nodeCount != (size == 0 ? 0 : 2L * size - 1)) {
+            throw new IllegalArgumentException("Invalid node count " + nodeCount + " for " + size + " objects");
+        }
+        idsOffset = getIDsOffset(nodeCount);
+        if (this.buffer.capacity() < idsOffset + (long) size * 8) {
+            throw new IllegalArgumentException("The buffer is truncated");
+        }
+    }
+
+    /**
+     * Checks that the nodes form a single tree in depth-first order, and that the leaves refer to the objects in order.
+     * This walks every node, so it takes time proportional to the size of the tree.
+     *
+     * @throws IllegalArgumentException if the buffer doesn't hold a valid tree
+     */
+    public void validate() {
+        IntStack stack = new IntStack();
+        if (nodeCount > 0) {
+            stack.push(0);
+        }
+        int objectCount = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            if (stack.isEmpty() || stack.pop() != node) {
+                throw new IllegalArgumentException("The nodes aren't stored in depth-first order");
+            }
+            int link = buffer.getInt(getNodeOffset(node) + 24);
+            if (link < 0) {
+                if (~link != objectCount++) {
+                    throw new IllegalArgumentException("Invalid object index " + ~link + " of node " + node);
+                }
+            } else {
+                if (link <= node + 1 || link >= nodeCount) {
+                    throw new IllegalArgumentException("Invalid right child " + link + " of node " + node);
+                }
+                stack.push(link);
+                stack.push(node + 1);
+            }
+        }
+        if (!stack.isEmpty() || objectCount != size) {
+            throw new IllegalArgumentException("The nodes don't form a single tree");
+        }
+    }
+
+    /**
+     * Maps the given file, written by {@link #write(AABBTree, Path)}, into memory.
+     */
+    public static <T extends Boundable & Identifiable> MappedAABBTree<T> map(Path path, LongFunction<T> lookup)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed.
+            return new MappedAABBTree<>(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), lookup);
+        }
+    }
+
+    public static <T extends Boundable & Identifiable> void write(AABBTree<T> tree, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(tree, channel);
+        }
+    }
+
+    public static <T extends Boundable & Identifiable> void write(AABBTree<T> tree, WritableByteChannel channel)
+            throws IOException {
+        FlatAABBTree<T> flatTree = tree.toFlatTree();
+        int flatNodeCount = flatTree.getNodeCount();
+        // Buffers are indexed with an int, so larger files couldn't be mapped.
+        if (getIDsOffset(flatNodeCount) + (long) flatTree.size() * 8 > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The tree is too large to be mapped");
+        }
+        float[] bounds = flatTree.getBounds();
+        int[] leftChildren = flatTree.getLeftChildren();
+        int[] rightChildren = flatTree.getRightChildren();
+        Object[] data = flatTree.getData();
+
+        ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        writeBuffer.putInt(MAGIC).putInt(VERSION).putInt(flatNodeCount).putInt(flatTree.size());
+
+        int objectCount = 0;
+        for (int node = 0; node < flatNodeCount; node++) {
+            if (writeBuffer.remaining() < NODE_SIZE) {
+                flush(writeBuffer, channel);
+            }
+            int offset = node * FlatAABBTree.BOUNDS_STRIDE;
+            for (int i = 0; i < FlatAABBTree.BOUNDS_STRIDE; i++) {
+                writeBuffer.putFloat(bounds[offset + i]);
+            }
+            writeBuffer.putInt(leftChildren[node] == INVALID_NODE_INDEX ? ~objectCount++ : rightChildren[node]);
+        }
+        // The IDs are aligned to eight bytes.
+        if (writeBuffer.remaining() < 8) {
+            flush(writeBuffer, channel);
+        }
+        for (long i = HEADER_SIZE + (long) flatNodeCount * NODE_SIZE; i < getIDsOffset(flatNodeCount); i++) {
+            writeBuffer.put((byte) 0);
+        }
+
+        for (int node = 0; node < flatNodeCount; node++) {
+            if (leftChildren[node] != INVALID_NODE_INDEX) {
+                continue;
+            }
+            if (writeBuffer.remaining() < 8) {
+                flush(writeBuffer, channel);
+            }
+            writeBuffer.putLong(((Identifiable) data[node]).getID());
+        }
+        flush(writeBuffer, channel);
+    }
+
+    private static void flush(ByteBuffer writeBuffer, WritableByteChannel channel) throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            channel.write(writeBuffer);
+        }
+        writeBuffer.clear();
+    }
+
+    private static long getIDsOffset(int nodeCount) {
+        long nodesEnd = HEADER_SIZE + (long) nodeCount * NODE_SIZE;
+        return (nodesEnd + 7) & ~7L;
+    }
+
+    // The constructor checks that all nodes lie within the buffer, so the offset of every node fits in an int.
+    private static int getNodeOffset(int node) {
+        return (int) (HEADER_SIZE + (long) node * NODE_SIZE);
+    }
+
+    @Override
+    void pushRoot(IntStack stack) {
+        stack.push(0);
+    }
+
+    @Override
+    int popNode(IntStack stack, AABBf dest) {
+        int node = stack.pop();
+        int offset = getNodeOffset(node);
+        dest.setMin(buffer.getFloat(offset), buffer.getFloat(offset + 4), buffer.getFloat(offset + 8));
+        dest.setMax(buffer.getFloat(offset + 12), buffer.getFloat(offset + 16), buffer.getFloat(offset + 20));
+        return node;
+    }
+
+    @Override
+    void pushChildren(int node, AABBf nodeAABB, IntStack stack) {
+        stack.push(getLink(node));
+        stack.push(node + 1);
+    }
+
+    @Override
+    boolean isLeaf(int node) {
+        return getLink(node) < 0;
+    }
+
+    @Override
+    T getObject(int node) {
+        return lookup.apply(getID(~getLink(node)));
+    }
+
+    private int getLink(int node) {
+        int link = buffer.getInt(getNodeOffset(node) + 24);
+        // Right children always follow the left ones, so a walk which only moves forward can't loop.
+        if (link < 0 ? ~link >= size : link <= node + 1 || link >= nodeCount) {
+            throw new IllegalStateException("Invalid link " + link + " of node " + node);
+        }
+        return link;
+    }
+
+    long getID(int objectIndex) {
+        return buffer.getLong((int) (idsOffset + (long) objectIndex * 8));
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    int getNodeCount() {
+        return nodeCount;
+    }
+}
@@ -0,0 +1,26 @@
+package pl.pateman.dynamicaabbtree;
+
+import org.joml.AABBf;
+
+/**
+ * The tests which traversals apply to the bounds of the nodes they visit. The frustum and ray tests use the
+ * intersections set up in the query context of the current thread.
+ */
+enum NodeTest {
+    AABB_OVERLAP,
+    FRUSTUM,
+    RAY;
+
+    boolean test(AABBf nodeAABB, AABBf overlapWith, QueryContext context) {
+        switch (this) {
+            case AABB_OVERLAP:
+                return nodeAABB.testAABB(overlapWith);
+            case FRUSTUM:
+                return context.frustumIntersection.testAab(nodeAABB.minX, nodeAABB.minY, nodeAABB.minZ, nodeAABB.maxX, nodeAABB.maxY, nodeAABB.maxZ);
+            case RAY:
+                return context.rayIntersection.test(nodeAABB.minX, nodeAABB.minY, nodeAABB.minZ, nodeAABB.maxX, nodeAABB.maxY, nodeAABB.maxZ);
+            default:
+                throw new IllegalArgumentException("Unsupported node test " + this);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package pl.pateman.dynamicaabbtree;
+
+import org.joml.AABBf;
+
+import static pl.pateman.dynamicaabbtree.AABBTreeNode.INVALID_NODE_INDEX;
+
+/**
+ * A compact, read-only copy of an {@link AABBTree}. The bounds of every node are stored as six 16-bit integers
+ * relative to the bounds of its parent, and the topology as a single {@code int} per node, so a node takes 16 bytes
+ * instead of the well over 100 bytes of an {@link AABBTreeNode}. The nodes are stored in depth-first order, so the left
+ * child of a node directly follows it and only the right child has to be stored.
+ * <p>
+ * Bounds are always rounded outwards, so a quantized box contains the original one and no object is ever missed. An
+ * object may be reported by a query that only touches its rounded box, which is at most 1/65535th of the size of its
+ * parent larger along every axis. Queries can be run from many threads at once.
+ */
+public final class QuantizedAABBTree<T extends Boundable & Identifiable> extends ReadOnlyAABBTree<T> {
+    static final int QUANTIZATION_STEPS = 0xFFFF;
+    static final int BOUNDS_STRIDE = 6;
+
+    private final float[] rootBounds;
+    private final short[] bounds;
+    // The index of the right child for branches, or the bitwise complement of the index of the object for leaves.
+    private final int[] topology;
+    private final Object[] data;
+    private final int nodeCount;
+    private final int size;
+
+    QuantizedAABBTree(FlatAABBTree<T> flatTree) {
+        float[] flatBounds = flatTree.getBounds();
+        int[] parents = flatTree.getParents();
+        int[] leftChildren = flatTree.getLeftChildren();
+        int[] rightChildren = flatTree.getRightChildren();
+        Object[] flatData = flatTree.getData();
+        nodeCount = flatTree.getNodeCount();
+        size = flatTree.size();
+
+        rootBounds = new float[BOUNDS_STRIDE];
+        bounds = new short[nodeCount * BOUNDS_STRIDE];
+        topology = new int[nodeCount];
+        data = new Object[size];
+        if (nodeCount == 0) {
+            return;
+        }
+        System.arraycopy(flatBounds, 0, rootBounds, 0, BOUNDS_STRIDE);
+
+        // Children are quantized relative to the rounded bounds of their parents, which are what the queries decode.
+        float[] decodedBounds = new float[nodeCount * BOUNDS_STRIDE];
+        int objectCount = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            int parent = parents[node];
+            float[] parentBounds = parent == INVALID_NODE_INDEX ? rootBounds : decodedBounds;
+            int parentOffset = parent == INVALID_NODE_INDEX ? 0 : parent * BOUNDS_STRIDE;
+            int offset = node * BOUNDS_STRIDE;
+            for (int axis = 0; axis < 3; axis++) {
+                float parentMin = parentBounds[parentOffset + axis];
+                float parentMax = parentBounds[parentOffset + axis + 3];
+                int min = quantizeMin(flatBounds[offset + axis], parentMin, parentMax);
+                int max = quantizeMax(flatBounds[offset + axis + 3], parentMin, parentMax);
+                bounds[offset + axis] = (short) min;
+                bounds[offset + axis + 3] = (short) max;
+                decodedBounds[offset + axis] = dequantize(min, parentMin, parentMax);
+                decodedBounds[offset + axis + 3] = dequantize(max, parentMin, parentMax);
+            }
+
+            if (leftChildren[node] == INVALID_NODE_INDEX) {
+                data[objectCount] = flatData[node];
+                topology[node] = ~objectCount++;
+            } else {
+                topology[node] = rightChildren[node];
+            }
+        }
+    }
+
+    private static float dequantize(int value, float min, float max) {
+        if (value == 0) {
+            return min;
+        }
+        if (value == QUANTIZATION_STEPS) {
+            return max;
+        }
+        return min + value * ((max - min) / QUANTIZATION_STEPS);
+    }
+
+    private static int quantizeMin(float value, float min, float max) {
+        int quantized = clampQuantized((int) Math.floor((value - min) / (max - min) * QUANTIZATION_STEPS));
+        // Compensates for the rounding errors of the division, so the decoded value never ends up above the original.
+        while (quantized > 0 && dequantize(quantized, min, max) > value) {
+            quantized--;
+        }
+        return quantized;
+    }
+
+    private static int quantizeMax(float value, float min, float max) {
+        int quantized = clampQuantized((int) Math.ceil((value - min) / (max - min) * QUANTIZATION_STEPS));
+        while (quantized < QUANTIZATION_STEPS && dequantize(quantized, min, max) < value) {
+            quantized++;
+        }
+        return quantized;
+    }
+
+    private static int clampQuantized(int value) {
+        return Math.max(0, Math.min(QUANTIZATION_STEPS, value));
+    }
+
+    // Every traversed node is pushed together with the bounds of its parent, which its own bounds are relative to.
+    @Override
+    void pushRoot(IntStack stack) {
+        for (int i = 0; i < BOUNDS_STRIDE; i++) {
+            stack.push(Float.floatToRawIntBits(rootBounds[i]));
+        }
+        stack.push(0);
+    }
+
+    private static void pushNode(int node, AABBf parentAABB, IntStack stack) {
+        stack.push(Float.floatToRawIntBits(parentAABB.minX));
+        stack.push(Float.floatToRawIntBits(parentAABB.minY));
+        stack.push(Float.floatToRawIntBits(parentAABB.minZ));
+        stack.push(Float.floatToRawIntBits(parentAABB.maxX));
+        stack.push(Float.floatToRawIntBits(parentAABB.maxY));
+        stack.push(Float.floatToRawIntBits(parentAABB.maxZ));
+        stack.push(node);
+    }
+
+    /**
+     * Pops a node together with the bounds of its parent, and decodes the bounds of the node into the given AABB.
+     */
+    @Override
+    int popNode(IntStack stack, AABBf dest) {
+        int node = stack.pop();
+        float parentMaxZ = Float.intBitsToFloat(stack.pop());
+        float parentMaxY = Float.intBitsToFloat(stack.pop());
+        float parentMaxX = Float.intBitsToFloat(stack.pop());
+        float parentMinZ = Float.intBitsToFloat(stack.pop());
+        float parentMinY = Float.intBitsToFloat(stack.pop());
+        float parentMinX = Float.intBitsToFloat(stack.pop());
+
+        int offset = node * BOUNDS_STRIDE;
+        dest.setMin(dequantize(bounds[offset] & QUANTIZATION_STEPS, parentMinX, parentMaxX),
+                dequantize(bounds[offset + 1] & QUANTIZATION_STEPS, parentMinY, parentMaxY),
+                dequantize(bounds[offset + 2] & QUANTIZATION_STEPS, parentMinZ, parentMaxZ));
+        dest.setMax(dequantize(bounds[offset + 3] & QUANTIZATION_STEPS, parentMinX, parentMaxX),
+                dequantize(bounds[offset + 4] & QUANTIZATION_STEPS, parentMinY, parentMaxY),
+                dequantize(bounds[offset + 5] & QUANTIZATION_STEPS, parentMinZ, parentMaxZ));
+        return node;
+    }
+
+    @Override
+    void pushChildren(int node, AABBf nodeAABB, IntStack stack) {
+        pushNode(topology[node], nodeAABB, stack);
+        pushNode(node + 1, nodeAABB, stack);
+    }
+
+    @Override
+    boolean isLeaf(int node) {
+        return topology[node] < 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    T getObject(int node) {
+        return (T) data[~topology[node]];
+    }
+
+    /**
+     * Decodes the bounds of all nodes into the given array, which has to hold six floats per node.
+     */
+    void decodeBounds(float[] dest) {
+        if (nodeCount > 0) {
+            decodeNode(0, rootBounds, 0, dest);
+        }
+        for (int node = 0; node < nodeCount; node++) {
+            int link = topology[node];
+            if (link >= 0) {
+                decodeNode(node + 1, dest, node * BOUNDS_STRIDE, dest);
+                decodeNode(link, dest, node * BOUNDS_STRIDE, dest);
+            }
+        }
+    }
+
+    private void decodeNode(int node, float[] parentBounds, int parentOffset, float[] dest) {
+        int offset = node * BOUNDS_STRIDE;
+        for (int axis = 0; axis < 3; axis++) {
+            float parentMin = parentBounds[parentOffset + axis];
+            float parentMax = parentBounds[parentOffset + axis + 3];
+            dest[offset + axis] = dequantize(bounds[offset + axis] & QUANTIZATION_STEPS, parentMin, parentMax);
+            dest[offset + axis + 3] = dequantize(bounds[offset + axis + 3] & QUANTIZATION_STEPS, parentMin, parentMax);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    int getNodeCount() {
+        return nodeCount;
+    }
+
+    short[] getBounds() {
+        return bounds;
+    }
+
+    int[] getTopology() {
+        return topology;
+    }
+}
@@ -0,0 +1,37 @@
+package pl.pateman.dynamicaabbtree;
+
+import org.joml.AABBf;
+import org.joml.FrustumIntersection;
+import org.joml.RayAabIntersection;
+import org.joml.Vector4f;
+
+/**
+ * The scratch state used by tree traversals. Every thread gets its own context, which is shared by all trees, so
+ * queries can run concurrently as long as no thread modifies the tree at the same time. Nested queries on the same
+ * thread continue on top of the stack of the outer query.
+ */
+final class QueryContext {
+    private static final ThreadLocal<QueryContext> CONTEXTS = ThreadLocal.withInitial(QueryContext::new);
+
+    final IntStack stack;
+    final FrustumIntersection frustumIntersection;
+    final RayAabIntersection rayIntersection;
+    final FloatIntHeap heap;
+    final AABBf aabb;
+    final float[] frustumPlanes;
+    final Vector4f plane;
+
+    private QueryContext() {
+        stack = new IntStack();
+        frustumIntersection = new FrustumIntersection();
+        rayIntersection = new RayAabIntersection();
+        heap = new FloatIntHeap();
+        aabb = new AABBf();
+        frustumPlanes = new float[24];
+        plane = new Vector4f();
+    }
+
+    static QueryContext get() {
+        return CONTEXTS.get();
+    }
+}
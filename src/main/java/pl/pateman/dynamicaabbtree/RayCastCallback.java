@@ -0,0 +1,17 @@
+package pl.pateman.dynamicaabbtree;
+
+import org.joml.Rayf;
+
+/**
+ * Performs the exact intersection test between a ray and an object whose AABB the ray hits. The distances are
+ * expressed in multiples of the length of the ray's direction.
+ */
+@FunctionalInterface
+public interface RayCastCallback<T extends Boundable & Identifiable>
+{
+   /**
+    * Returns the distance at which the ray hits the object, or a negative value if it misses it. Hits farther than
+    * {@code maxDistance} are ignored.
+    */
+   float rayCast(T object, Rayf ray, float maxDistance);
+}
@@ -0,0 +1,41 @@
+package pl.pateman.dynamicaabbtree;
+
+/**
+ * The closest object hit by a ray cast, along with the distance of the hit. Can be reused between ray casts.
+ */
+public final class RayCastHit<T extends Boundable & Identifiable>
+{
+   private T object;
+   private float distance;
+
+   public RayCastHit()
+   {
+      reset();
+   }
+
+   void set(T object, float distance)
+   {
+      this.object = object;
+      this.distance = distance;
+   }
+
+   void reset()
+   {
+      set(null, Float.POSITIVE_INFINITY);
+   }
+
+   public boolean hasHit()
+   {
+      return object != null;
+   }
+
+   public T getObject()
+   {
+      return object;
+   }
+
+   public float getDistance()
+   {
+      return distance;
+   }
+}
@@ -0,0 +1,100 @@
+package pl.pateman.dynamicaabbtree;
+
+import org.joml.AABBf;
+import org.joml.Matrix4fc;
+import org.joml.Rayf;
+
+import java.util.List;
+
+/**
+ * The queries shared by the read-only copies of an {@link AABBTree}. The traversal is the same for all of them, only the
+ * way the nodes are stored differs, so subclasses just decode their nodes onto the traversal stack and read the objects
+ * of the leaves. Queries can be run from many threads at once.
+ */
+abstract class ReadOnlyAABBTree<T extends Boundable & Identifiable> {
+    private final AABBOverlapFilter<T> defaultAABBOverlapFilter = new DefaultAABBOverlapFilter<>();
+
+    public void detectOverlaps(AABBf overlapWith, List<T> result) {
+        detectOverlaps(overlapWith, defaultAABBOverlapFilter, result);
+    }
+
+    public void detectOverlaps(AABBf overlapWith, AABBOverlapFilter<T> filter, List<T> result) {
+        result.clear();
+        traverse(NodeTest.AABB_OVERLAP, overlapWith, filter, result, QueryContext.get());
+    }
+
+    public void detectInFrustum(Matrix4fc worldViewProjection, List<T> result) {
+        detectInFrustum(worldViewProjection, defaultAABBOverlapFilter, result);
+    }
+
+    public void detectInFrustum(Matrix4fc worldViewProjection, AABBOverlapFilter<T> filter, List<T> result) {
+        result.clear();
+        QueryContext context = QueryContext.get();
+        context.frustumIntersection.set(worldViewProjection, false);
+        traverse(NodeTest.FRUSTUM, null, filter, result, context);
+    }
+
+    public void detectRayIntersection(Rayf ray, List<T> result) {
+        detectRayIntersection(ray, defaultAABBOverlapFilter, result);
+    }
+
+    public void detectRayIntersection(Rayf ray, AABBOverlapFilter<T> filter, List<T> result) {
+        result.clear();
+        QueryContext context = QueryContext.get();
+        context.rayIntersection.set(ray.oX, ray.oY, ray.oZ, ray.dX, ray.dY, ray.dZ);
+        traverse(NodeTest.RAY, null, filter, result, context);
+    }
+
+    public abstract int size();
+
+    private void traverse(NodeTest nodeTest, AABBf overlapWith, AABBOverlapFilter<T> filter, List<T> result,
+                          QueryContext context) {
+        if (size() == 0) {
+            return;
+        }
+
+        // Nested queries (e.g. issued from a filter) continue on top of the stack, above this traversal's base.
+        AABBf nodeAABB = context.aabb;
+        IntStack stack = context.stack;
+        int stackBase = stack.size();
+        pushRoot(stack);
+
+        while (stack.size() > stackBase) {
+            int node = popNode(stack, nodeAABB);
+            if (!nodeTest.test(nodeAABB, overlapWith, context)) {
+                continue;
+            }
+            if (isLeaf(node)) {
+                T nodeData = getObject(node);
+                if (nodeData != null && filter.test(nodeData)) {
+                    result.add(nodeData);
+                }
+            } else {
+                pushChildren(node, nodeAABB, stack);
+            }
+        }
+    }
+
+    /**
+     * Pushes the root onto the traversal stack. Only called for trees which aren't empty.
+     */
+    abstract void pushRoot(IntStack stack);
+
+    /**
+     * Pops a node pushed by {@link #pushRoot(IntStack)} or {@link #pushChildren(int, AABBf, IntStack)}, and writes its
+     * bounds into the given AABB.
+     */
+    abstract int popNode(IntStack stack, AABBf dest);
+
+    /**
+     * Pushes the children of the given branch onto the traversal stack, the left one last so it's visited first.
+     */
+    abstract void pushChildren(int node, AABBf nodeAABB, IntStack stack);
+
+    abstract boolean isLeaf(int node);
+
+    /**
+     * Returns the object of the given leaf, or {@code null} if it should be skipped.
+     */
+    abstract T getObject(int node);
+}
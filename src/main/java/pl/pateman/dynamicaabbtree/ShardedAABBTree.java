@@ -0,0 +1,203 @@
+package pl.pateman.dynamicaabbtree;
+
+import org.joml.AABBf;
+import org.joml.Matrix4fc;
+import org.joml.Rayf;
+import org.joml.Vector3fc;
+
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Splits objects between several {@link AABBTree}s by the hash of their IDs, each guarded by its own lock, so that
+ * objects which end up in different shards can be added, updated and removed from different threads at the same time.
+ * Every object always lives in the same shard regardless of its position, so objects don't have to be moved between
+ * shards and no object is ever stored twice. Queries visit all shards and merge their results.
+ */
+public final class ShardedAABBTree<T extends Boundable & Identifiable> {
+    private final AABBTree<T>[] shards;
+    private final ReadWriteLock[] locks;
+    private final AABBOverlapFilter<T> defaultAABBOverlapFilter;
+    private final CollisionFilter<T> defaultCollisionFilter;
+
+    public ShardedAABBTree(int shardCount) {
+        this(shardCount, AABBTree.DEFAULT_FAT_AABB_MARGIN);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ShardedAABBTree(int shardCount, float fatAABBMargin) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        shards = new AABBTree[shardCount];
+        locks = new ReadWriteLock[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new AABBTree<>(new AreaAABBHeuristicFunction<>(), fatAABBMargin);
+            locks[i] = new ReentrantReadWriteLock();
+        }
+        defaultAABBOverlapFilter = new DefaultAABBOverlapFilter<>();
+        defaultCollisionFilter = new DefaultCollisionFilter<>();
+    }
+
+    private int getShardIndex(T object) {
+        long h = object.getID() * 0x9E3779B97F4A7C15L;
+        return (int) ((h >>> 32) % shards.length);
+    }
+
+    public void add(T object) {
+        int shard = getShardIndex(object);
+        locks[shard].writeLock().lock();
+        try {
+            shards[shard].add(object);
+        } finally {
+            locks[shard].writeLock().unlock();
+        }
+    }
+
+    public void update(T object) {
+        update(object, null);
+    }
+
+    public void update(T object, Vector3fc displacement) {
+        int shard = getShardIndex(object);
+        locks[shard].writeLock().lock();
+        try {
+            if (displacement == null) {
+                shards[shard].update(object);
+            } else {
+                shards[shard].update(object, displacement);
+            }
+        } finally {
+            locks[shard].writeLock().unlock();
+        }
+    }
+
+    public void remove(T object) {
+        int shard = getShardIndex(object);
+        locks[shard].writeLock().lock();
+        try {
+            shards[shard].remove(object);
+        } finally {
+            locks[shard].writeLock().unlock();
+        }
+    }
+
+    public boolean contains(T object) {
+        int shard = getShardIndex(object);
+        locks[shard].readLock().lock();
+        try {
+            return shards[shard].contains(object);
+        } finally {
+            locks[shard].readLock().unlock();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (int shard = 0; shard < shards.length; shard++) {
+            locks[shard].readLock().lock();
+            try {
+                size += shards[shard].size();
+            } finally {
+                locks[shard].readLock().unlock();
+            }
+        }
+        return size;
+    }
+
+    public void clear() {
+        for (int shard = 0; shard < shards.length; shard++) {
+            locks[shard].writeLock().lock();
+            try {
+                shards[shard].clear();
+            } finally {
+                locks[shard].writeLock().unlock();
+            }
+        }
+    }
+
+    public void detectOverlaps(AABBf overlapWith, List<T> result) {
+        detectOverlaps(overlapWith, defaultAABBOverlapFilter, result);
+    }
+
+    public void detectOverlaps(AABBf overlapWith, AABBOverlapFilter<T> filter, List<T> result) {
+        result.clear();
+        for (int shard = 0; shard < shards.length; shard++) {
+            locks[shard].readLock().lock();
+            try {
+                shards[shard].collectOverlaps(overlapWith, filter, result);
+            } finally {
+                locks[shard].readLock().unlock();
+            }
+        }
+    }
+
+    public void detectInFrustum(Matrix4fc worldViewProjection, List<T> result) {
+        detectInFrustum(worldViewProjection, defaultAABBOverlapFilter, result);
+    }
+
+    public void detectInFrustum(Matrix4fc worldViewProjection, AABBOverlapFilter<T> filter, List<T> result) {
+        result.clear();
+        for (int shard = 0; shard < shards.length; shard++) {
+            locks[shard].readLock().lock();
+            try {
+                shards[shard].collectInFrustum(worldViewProjection, filter, result);
+            } finally {
+                locks[shard].readLock().unlock();
+            }
+        }
+    }
+
+    public void detectRayIntersection(Rayf ray, List<T> result) {
+        detectRayIntersection(ray, defaultAABBOverlapFilter, result);
+    }
+
+    public void detectRayIntersection(Rayf ray, AABBOverlapFilter<T> filter, List<T> result) {
+        result.clear();
+        for (int shard = 0; shard < shards.length; shard++) {
+            locks[shard].readLock().lock();
+            try {
+                shards[shard].collectRayIntersections(ray, filter, result);
+            } finally {
+                locks[shard].readLock().unlock();
+            }
+        }
+    }
+
+    public void detectCollisionPairs(List<CollisionPair<T>> result) {
+        detectCollisionPairs(defaultCollisionFilter, result);
+    }
+
+    /**
+     * Finds all pairs of objects whose fat AABBs overlap, both within every shard and between every two shards. All
+     * shards are locked for reading for the duration of the query, so the result is consistent.
+     */
+    public void detectCollisionPairs(CollisionFilter<T> filter, List<CollisionPair<T>> result) {
+        result.clear();
+        BiConsumer<T, T> pairConsumer = (objectA, objectB) -> result.add(new CollisionPair<>(objectA, objectB));
+
+        // The locks are always taken in the same order, so concurrent pair queries can't deadlock.
+        int lockedShards = 0;
+        try {
+            for (; lockedShards < shards.length; lockedShards++) {
+                locks[lockedShards].readLock().lock();
+            }
+            for (int shardA = 0; shardA < shards.length; shardA++) {
+                shards[shardA].detectCollisionPairs(filter, pairConsumer);
+                for (int shardB = shardA + 1; shardB < shards.length; shardB++) {
+                    shards[shardA].detectCollisionPairs(shards[shardB], filter, pairConsumer);
+                }
+            }
+        } finally {
+            for (int shard = lockedShards - 1; shard >= 0; shard--) {
+                locks[shard].readLock().unlock();
+            }
+        }
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+}
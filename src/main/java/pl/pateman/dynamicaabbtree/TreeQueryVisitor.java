@@ -0,0 +1,12 @@
+package pl.pateman.dynamicaabbtree;
+
+@FunctionalInterface
+public interface TreeQueryVisitor<T extends Boundable & Identifiable>
+{
+   VisitResult visit(T object);
+
+   enum VisitResult {
+      CONTINUE,
+      STOP
+   }
+}
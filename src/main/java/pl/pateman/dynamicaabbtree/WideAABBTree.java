@@ -0,0 +1,305 @@
+package pl.pateman.dynamicaabbtree;
+
+import org.joml.AABBf;
+import org.joml.Matrix4fc;
+import org.joml.Rayf;
+import org.joml.Vector4f;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static pl.pateman.dynamicaabbtree.AABBUtils.getArea;
+
+/**
+ * A read-only copy of an {@link AABBTree} in which every node has up to four children, made by collapsing the binary
+ * hierarchy. The bounds of the children of a node are stored together as packed lanes (the minimum x of all children,
+ * then the minimum y, and so on), so a traversal tests all children of a node in one short, branch-free loop instead of
+ * popping every child separately. This halves the depth of the tree and considerably reduces the number of visited
+ * nodes. Objects that are moved after the copy was made are not reflected in it. Queries can be run from many threads
+ * at once.
+ */
+public final class WideAABBTree<T extends Boundable & Identifiable> {
+    static final int WIDTH = 4;
+    // Six lanes of bounds per node: minX, minY, minZ, maxX, maxY, maxZ.
+    static final int NODE_STRIDE = 6 * WIDTH;
+    static final int EMPTY_CHILD = Integer.MIN_VALUE;
+
+    private final float[] bounds;
+    // Non-negative values refer to nodes, negative ones to objects (as the bitwise complement of their index).
+    private final int[] children;
+    private final Object[] data;
+    private final int nodeCount;
+    private final int size;
+    private final AABBOverlapFilter<T> defaultAABBOverlapFilter;
+
+    WideAABBTree(AABBTree<T> tree) {
+        List<AABBTreeNode<T>> nodes = tree.getNodes();
+        int root = tree.getRoot();
+        size = tree.size();
+        defaultAABBOverlapFilter = new DefaultAABBOverlapFilter<>();
+        data = new Object[size];
+
+        int maxNodeCount = Math.max(size - 1, 1);
+        float[] wideBounds = new float[maxNodeCount * NODE_STRIDE];
+        int[] wideChildren = new int[maxNodeCount * WIDTH];
+        int wideNodeCount = 0;
+
+        if (root != AABBTreeNode.INVALID_NODE_INDEX) {
+            // Pairs of (binary node, child slot of the wide parent) waiting to be collapsed.
+            IntStack stack = new IntStack();
+            stack.push(root);
+            stack.push(-1);
+            int[] collapsed = new int[WIDTH];
+            int objectCount = 0;
+
+            while (!stack.isEmpty()) {
+                int parentSlot = stack.pop();
+                AABBTreeNode<T> binaryNode = nodes.get(stack.pop());
+                int wideNode = wideNodeCount++;
+                if (parentSlot >= 0) {
+                    wideChildren[parentSlot] = wideNode;
+                }
+
+                int childCount = collapse(nodes, binaryNode, collapsed);
+                for (int lane = 0; lane < WIDTH; lane++) {
+                    int slot = wideNode * WIDTH + lane;
+                    if (lane >= childCount) {
+                        wideChildren[slot] = EMPTY_CHILD;
+                        setLaneBounds(wideBounds, wideNode, lane, null);
+                        continue;
+                    }
+
+                    AABBTreeNode<T> child = nodes.get(collapsed[lane]);
+                    setLaneBounds(wideBounds, wideNode, lane, child.getAABB());
+                    if (child.isLeaf()) {
+                        data[objectCount] = child.getData();
+                        wideChildren[slot] = ~objectCount++;
+                    } else {
+                        stack.push(child.getIndex());
+                        stack.push(slot);
+                    }
+                }
+            }
+        }
+
+        nodeCount = wideNodeCount;
+        bounds = Arrays.copyOf(wideBounds, nodeCount * NODE_STRIDE);
+        children = Arrays.copyOf(wideChildren, nodeCount * WIDTH);
+    }
+
+    /**
+     * Gathers up to {@link #WIDTH} descendants of the node that together cover all of its objects, by repeatedly
+     * replacing the branch with the largest area with its children. Returns the number of gathered nodes.
+     */
+    private static <T extends Boundable> int collapse(List<AABBTreeNode<T>> nodes, AABBTreeNode<T> node, int[] collapsed) {
+        if (node.isLeaf()) {
+            collapsed[0] = node.getIndex();
+            return 1;
+        }
+
+        collapsed[0] = node.getLeftChild();
+        collapsed[1] = node.getRightChild();
+        int count = 2;
+        while (count < WIDTH) {
+            int largest = -1;
+            float largestArea = -1.0f;
+            for (int i = 0; i < count; i++) {
+                AABBTreeNode<T> candidate = nodes.get(collapsed[i]);
+                if (!candidate.isLeaf() && getArea(candidate.getAABB()) > largestArea) {
+                    largest = i;
+                    largestArea = getArea(candidate.getAABB());
+                }
+            }
+            if (largest < 0) {
+                break;
+            }
+            AABBTreeNode<T> opened = nodes.get(collapsed[largest]);
+            collapsed[largest] = opened.getLeftChild();
+            collapsed[count++] = opened.getRightChild();
+        }
+        return count;
+    }
+
+    private static void setLaneBounds(float[] bounds, int node, int lane, AABBf aabb) {
+        int offset = node * NODE_STRIDE + lane;
+        // Empty lanes get inverted bounds, which no AABB overlaps.
+        bounds[offset] = aabb == null ? Float.POSITIVE_INFINITY : aabb.minX;
+        bounds[offset + WIDTH] = aabb == null ? Float.POSITIVE_INFINITY : aabb.minY;
+        bounds[offset + 2 * WIDTH] = aabb == null ? Float.POSITIVE_INFINITY : aabb.minZ;
+        bounds[offset + 3 * WIDTH] = aabb == null ? Float.NEGATIVE_INFINITY : aabb.maxX;
+        bounds[offset + 4 * WIDTH] = aabb == null ? Float.NEGATIVE_INFINITY : aabb.maxY;
+        bounds[offset + 5 * WIDTH] = aabb == null ? Float.NEGATIVE_INFINITY : aabb.maxZ;
+    }
+
+    public void detectOverlaps(AABBf overlapWith, List<T> result) {
+        detectOverlaps(overlapWith, defaultAABBOverlapFilter, result);
+    }
+
+    public void detectOverlaps(AABBf overlapWith, AABBOverlapFilter<T> filter, List<T> result) {
+        result.clear();
+        if (nodeCount == 0) {
+            return;
+        }
+
+        IntStack stack = QueryContext.get().stack;
+        int stackBase = stack.size();
+        stack.push(0);
+        while (stack.size() > stackBase) {
+            int offset = stack.pop() * NODE_STRIDE;
+            int hits = 0;
+            for (int lane = 0; lane < WIDTH; lane++) {
+                int laneOffset = offset + lane;
+                boolean hit = (overlapWith.maxX >= bounds[laneOffset]) &
+                        (overlapWith.maxY >= bounds[laneOffset + WIDTH]) &
+                        (overlapWith.maxZ >= bounds[laneOffset + 2 * WIDTH]) &
+                        (overlapWith.minX <= bounds[laneOffset + 3 * WIDTH]) &
+                        (overlapWith.minY <= bounds[laneOffset + 4 * WIDTH]) &
+                        (overlapWith.minZ <= bounds[laneOffset + 5 * WIDTH]);
+                hits |= (hit ? 1 : 0) << lane;
+            }
+            visitChildren(offset / NODE_STRIDE, hits, filter, result, stack);
+        }
+    }
+
+    public void detectInFrustum(Matrix4fc worldViewProjection, List<T> result) {
+        detectInFrustum(worldViewProjection, defaultAABBOverlapFilter, result);
+    }
+
+    public void detectInFrustum(Matrix4fc worldViewProjection, AABBOverlapFilter<T> filter, List<T> result) {
+        result.clear();
+        if (nodeCount == 0) {
+            return;
+        }
+
+        QueryContext context = QueryContext.get();
+        float[] planes = context.frustumPlanes;
+        Vector4f plane = context.plane;
+        for (int i = 0; i < 6; i++) {
+            worldViewProjection.frustumPlane(i, plane);
+            planes[i * 4] = plane.x;
+            planes[i * 4 + 1] = plane.y;
+            planes[i * 4 + 2] = plane.z;
+            planes[i * 4 + 3] = plane.w;
+        }
+
+        IntStack stack = context.stack;
+        int stackBase = stack.size();
+        stack.push(0);
+        while (stack.size() > stackBase) {
+            int node = stack.pop();
+            int offset = node * NODE_STRIDE;
+            int hits = (1 << WIDTH) - 1;
+            // A child is culled if its corner farthest along the normal of any plane is behind that plane.
+            for (int i = 0; i < 24; i += 4) {
+                float nx = planes[i];
+                float ny = planes[i + 1];
+                float nz = planes[i + 2];
+                float d = planes[i + 3];
+                int xOffset = offset + (nx < 0.0f ? 0 : 3 * WIDTH);
+                int yOffset = offset + (ny < 0.0f ? WIDTH : 4 * WIDTH);
+                int zOffset = offset + (nz < 0.0f ? 2 * WIDTH : 5 * WIDTH);
+                for (int lane = 0; lane < WIDTH; lane++) {
+                    boolean inside = nx * bounds[xOffset + lane] + ny * bounds[yOffset + lane] +
+                            nz * bounds[zOffset + lane] >= -d;
+                    hits &= ~((inside ? 0 : 1) << lane);
+                }
+            }
+            visitChildren(node, hits, filter, result, stack);
+        }
+    }
+
+    public void detectRayIntersection(Rayf ray, List<T> result) {
+        detectRayIntersection(ray, defaultAABBOverlapFilter, result);
+    }
+
+    public void detectRayIntersection(Rayf ray, AABBOverlapFilter<T> filter, List<T> result) {
+        result.clear();
+        if (nodeCount == 0) {
+            return;
+        }
+
+        float inverseDirectionX = 1.0f / ray.dX;
+        float inverseDirectionY = 1.0f / ray.dY;
+        float inverseDirectionZ = 1.0f / ray.dZ;
+        // An axis along which the ray doesn't move is hit only if the origin lies between the slab's planes.
+        boolean parallelX = Float.isInfinite(inverseDirectionX);
+        boolean parallelY = Float.isInfinite(inverseDirectionY);
+        boolean parallelZ = Float.isInfinite(inverseDirectionZ);
+        IntStack stack = QueryContext.get().stack;
+        int stackBase = stack.size();
+        stack.push(0);
+        while (stack.size() > stackBase) {
+            int node = stack.pop();
+            int offset = node * NODE_STRIDE;
+            int hits = 0;
+            // Empty lanes may pass the test, but are skipped when the children are visited.
+            for (int lane = 0; lane < WIDTH; lane++) {
+                int laneOffset = offset + lane;
+                float near = 0.0f;
+                float far = Float.POSITIVE_INFINITY;
+                boolean hit = true;
+                if (parallelX) {
+                    hit = ray.oX >= bounds[laneOffset] && ray.oX <= bounds[laneOffset + 3 * WIDTH];
+                } else {
+                    float t1 = (bounds[laneOffset] - ray.oX) * inverseDirectionX;
+                    float t2 = (bounds[laneOffset + 3 * WIDTH] - ray.oX) * inverseDirectionX;
+                    near = Math.max(near, Math.min(t1, t2));
+                    far = Math.min(far, Math.max(t1, t2));
+                }
+                if (parallelY) {
+                    hit &= ray.oY >= bounds[laneOffset + WIDTH] && ray.oY <= bounds[laneOffset + 4 * WIDTH];
+                } else {
+                    float t1 = (bounds[laneOffset + WIDTH] - ray.oY) * inverseDirectionY;
+                    float t2 = (bounds[laneOffset + 4 * WIDTH] - ray.oY) * inverseDirectionY;
+                    near = Math.max(near, Math.min(t1, t2));
+                    far = Math.min(far, Math.max(t1, t2));
+                }
+                if (parallelZ) {
+                    hit &= ray.oZ >= bounds[laneOffset + 2 * WIDTH] && ray.oZ <= bounds[laneOffset + 5 * WIDTH];
+                } else {
+                    float t1 = (bounds[laneOffset + 2 * WIDTH] - ray.oZ) * inverseDirectionZ;
+                    float t2 = (bounds[laneOffset + 5 * WIDTH] - ray.oZ) * inverseDirectionZ;
+                    near = Math.max(near, Math.min(t1, t2));
+                    far = Math.min(far, Math.max(t1, t2));
+                }
+                hits |= (hit && near <= far ? 1 : 0) << lane;
+            }
+            visitChildren(node, hits, filter, result, stack);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void visitChildren(int node, int hits, AABBOverlapFilter<T> filter, List<T> result, IntStack stack) {
+        // Children are pushed in reverse, so they are visited in their original order.
+        for (int lane = WIDTH - 1; lane >= 0; lane--) {
+            int child = children[node * WIDTH + lane];
+            if ((hits & (1 << lane)) == 0 || child == EMPTY_CHILD) {
+                continue;
+            }
+            if (child >= 0) {
+                stack.push(child);
+                continue;
+            }
+            T object = (T) data[~child];
+            if (filter.test(object)) {
+                result.add(object);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    int getNodeCount() {
+        return nodeCount;
+    }
+
+    float[] getBounds() {
+        return bounds;
+    }
+
+    int[] getChildren() {
+        return children;
+    }
+}
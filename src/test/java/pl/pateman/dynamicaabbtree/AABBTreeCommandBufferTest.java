@@ -0,0 +1,185 @@
+package pl.pateman.dynamicaabbtree;
+
+import org.joml.AABBf;
+import org.joml.Vector3f;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+
+public class AABBTreeCommandBufferTest
+{
+   @Test
+   public void shouldCoalesceCommandsOfTheSameObject() {
+      // Given
+      AABBTree<TestEntity> tree = new AABBTree<>();
+      AABBTreeCommandBuffer<TestEntity> commandBuffer = new AABBTreeCommandBuffer<>(tree);
+      TestEntity entity1 = new TestEntity(1, 0.0f, 0.0f, 10.0f, 10.0f);
+      TestEntity entity2 = new TestEntity(2, 20.0f, 0.0f, 10.0f, 10.0f);
+      TestEntity entity3 = new TestEntity(3, 40.0f, 0.0f, 10.0f, 10.0f);
+      tree.add(entity1);
+      tree.add(entity2);
+      tree.resetUpdateCounts();
+
+      // When
+      commandBuffer.add(entity3);
+      commandBuffer.remove(entity3);
+      commandBuffer.remove(entity2);
+      commandBuffer.add(entity2);
+      for (int i = 1; i <= 3; i++) {
+         entity1.setPosition(i * 50.0f, 0.0f);
+         commandBuffer.update(entity1, new Vector3f(50.0f, 0.0f, 0.0f));
+      }
+      commandBuffer.commit();
+
+      // Then
+      assertEquals(2, tree.size());
+      assertFalse(tree.contains(entity3));
+      assertTrue(tree.contains(entity2));
+      assertEquals(1L, tree.getReinsertedUpdateCount());
+      assertTrue(tree.getFatAABB(entity1).maxX >= 210.0f);
+      AABBTreeTest.assertValidTree(tree);
+   }
+
+   @Test
+   public void shouldApplyCommandsRecordedByManyThreads() throws Exception {
+      // Given
+      AABBTree<TestEntity> tree = new AABBTree<>();
+      AABBTreeCommandBuffer<TestEntity> commandBuffer = new AABBTreeCommandBuffer<>(tree);
+      List<TestEntity> entities = TestEntities.givenRandomEntities(1000);
+      ExecutorService executor = Executors.newFixedThreadPool(4);
+
+      // When
+      try {
+         runOnThreads(executor, entities, commandBuffer::add);
+         commandBuffer.commit();
+         runOnThreads(executor, entities, entity -> {
+            AABBf aabb = entity.getAABB(new AABBf());
+            entity.setPosition(aabb.minX + 3.0f, aabb.minY - 2.0f);
+            commandBuffer.update(entity);
+         });
+         commandBuffer.commit();
+      } finally {
+         executor.shutdown();
+      }
+
+      // Then
+      assertEquals(1000, tree.size());
+      AABBTreeTest.assertValidTree(tree);
+      AABBTree<TestEntity> expectedTree = new AABBTree<>();
+      for (TestEntity entity : entities) {
+         expectedTree.add(entity);
+      }
+      AABBf overlapWith = new AABBf(10.0f, 10.0f, 0.0f, 40.0f, 30.0f, 0.0f);
+      List<TestEntity> expected = new ArrayList<>();
+      List<TestEntity> result = new ArrayList<>();
+      expectedTree.detectOverlaps(overlapWith, expected);
+      tree.detectOverlaps(overlapWith, result);
+      TestEntities.assertSameEntities(expected, result);
+   }
+
+   @Test
+   public void shouldApplySmallBatchesIncrementally() {
+      // Given
+      AABBTree<TestEntity> tree = new AABBTree<>();
+      AABBTreeCommandBuffer<TestEntity> commandBuffer = new AABBTreeCommandBuffer<>(tree);
+      List<TestEntity> entities = TestEntities.givenRandomEntities(200);
+      for (TestEntity entity : entities) {
+         tree.add(entity);
+      }
+      tree.resetUpdateCounts();
+      TestEntity movedEntity = entities.get(0);
+      TestEntity addedEntity = new TestEntity(1000, 50.0f, 50.0f, 1.0f, 1.0f);
+
+      // When
+      movedEntity.setPosition(150.0f, 150.0f);
+      commandBuffer.update(movedEntity);
+      commandBuffer.add(addedEntity);
+      commandBuffer.remove(entities.get(1));
+      commandBuffer.commit();
+
+      // Then
+      assertEquals(200, tree.size());
+      assertEquals(1L, tree.getReinsertedUpdateCount());
+      assertTrue(tree.contains(addedEntity));
+      assertFalse(tree.contains(entities.get(1)));
+      AABBTreeTest.assertValidTree(tree);
+   }
+
+   @Test
+   public void shouldCountTheUpdatesOfABulkMove() {
+      // Given
+      AABBTree<TestEntity> tree = new AABBTree<>();
+      AABBTreeCommandBuffer<TestEntity> commandBuffer = new AABBTreeCommandBuffer<>(tree);
+      List<TestEntity> entities = TestEntities.givenRandomEntities(200);
+      for (TestEntity entity : entities) {
+         tree.add(entity);
+      }
+      tree.resetUpdateCounts();
+
+      // When
+      for (int i = 0; i < 100; i++) {
+         TestEntity entity = entities.get(i);
+         if (i % 2 == 0) {
+            AABBf aabb = entity.getAABB(new AABBf());
+            entity.setPosition(aabb.minX + 20.0f, aabb.minY);
+         }
+         commandBuffer.update(entity);
+      }
+      commandBuffer.commit();
+
+      // Then
+      assertEquals(50L, tree.getReinsertedUpdateCount());
+      assertEquals(50L, tree.getSkippedUpdateCount());
+      AABBTreeTest.assertValidTree(tree);
+   }
+
+   @Test
+   public void shouldReleaseTheQueuesOfTerminatedThreads() throws Exception {
+      // Given
+      AABBTree<TestEntity> tree = new AABBTree<>();
+      AABBTreeCommandBuffer<TestEntity> commandBuffer = new AABBTreeCommandBuffer<>(tree);
+      List<TestEntity> entities = TestEntities.givenRandomEntities(10);
+      List<Thread> threads = new ArrayList<>();
+      for (TestEntity entity : entities) {
+         threads.add(new Thread(() -> commandBuffer.add(entity)));
+      }
+
+      // When
+      for (Thread thread : threads) {
+         thread.start();
+         thread.join();
+      }
+      commandBuffer.remove(entities.get(0));
+      int queueCountBeforeCommit = commandBuffer.getQueueCount();
+      commandBuffer.commit();
+
+      // Then
+      assertEquals(11, queueCountBeforeCommit);
+      assertEquals(1, commandBuffer.getQueueCount());
+      assertEquals(9, tree.size());
+      assertFalse(tree.contains(entities.get(0)));
+   }
+
+   private void runOnThreads(ExecutorService executor, List<TestEntity> entities,
+                             Consumer<TestEntity> command) throws Exception {
+      List<Future<?>> tasks = new ArrayList<>();
+      for (int thread = 0; thread < 4; thread++) {
+         int first = thread;
+         tasks.add(executor.submit(() -> {
+            for (int i = first; i < entities.size(); i += 4) {
+               command.accept(entities.get(i));
+            }
+         }));
+      }
+      for (Future<?> task : tasks) {
+         task.get();
+      }
+   }
+}
@@ -0,0 +1,189 @@
+package pl.pateman.dynamicaabbtree;
+
+import org.joml.AABBf;
+import org.joml.Matrix4f;
+import org.joml.Matrix4fc;
+import org.joml.Rayf;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.LongFunction;
+
+import static org.junit.Assert.*;
+import static pl.pateman.dynamicaabbtree.TestEntities.assertSameEntities;
+import static pl.pateman.dynamicaabbtree.TestEntities.givenRandomTree;
+
+/**
+ * Checks that every read-only copy of a tree answers queries exactly like the tree itself.
+ */
+@RunWith(Parameterized.class)
+public class AABBTreeCopiesTest
+{
+   private final BiFunction<AABBTree<TestEntity>, LongFunction<TestEntity>, TreeCopy> copyFactory;
+
+   public AABBTreeCopiesTest(String name, BiFunction<AABBTree<TestEntity>, LongFunction<TestEntity>, TreeCopy> copyFactory) {
+      this.copyFactory = copyFactory;
+   }
+
+   @Parameterized.Parameters(name = "{0}")
+   public static Collection<Object[]> copies() {
+      return Arrays.asList(new Object[][] {
+            { "flat", (BiFunction<AABBTree<TestEntity>, LongFunction<TestEntity>, TreeCopy>) (tree, lookup) -> {
+               FlatAABBTree<TestEntity> copy = tree.toFlatTree();
+               return new TreeCopy(copy::detectOverlaps, copy::detectInFrustum, copy::detectRayIntersection, copy.size());
+            } },
+            { "snapshot", (BiFunction<AABBTree<TestEntity>, LongFunction<TestEntity>, TreeCopy>) (tree, lookup) -> {
+               AABBTreeSnapshot<TestEntity> copy = tree.snapshot();
+               return new TreeCopy(copy::detectOverlaps, copy::detectInFrustum, copy::detectRayIntersection, copy.size());
+            } },
+            { "wide", (BiFunction<AABBTree<TestEntity>, LongFunction<TestEntity>, TreeCopy>) (tree, lookup) -> {
+               WideAABBTree<TestEntity> copy = tree.toWideTree();
+               return new TreeCopy(copy::detectOverlaps, copy::detectInFrustum, copy::detectRayIntersection, copy.size());
+            } },
+            { "quantized", (BiFunction<AABBTree<TestEntity>, LongFunction<TestEntity>, TreeCopy>) (tree, lookup) -> {
+               QuantizedAABBTree<TestEntity> copy = tree.toQuantizedTree();
+               return new TreeCopy(copy::detectOverlaps, copy::detectInFrustum, copy::detectRayIntersection, copy.size());
+            } },
+            { "mapped", (BiFunction<AABBTree<TestEntity>, LongFunction<TestEntity>, TreeCopy>) (tree, lookup) -> {
+               MappedAABBTree<TestEntity> copy = new MappedAABBTree<>(ByteBuffer.wrap(writeMapped(tree)), lookup);
+               return new TreeCopy(copy::detectOverlaps, copy::detectInFrustum, copy::detectRayIntersection, copy.size());
+            } }
+      });
+   }
+
+   @Test
+   public void shouldFindNothingInACopyOfAnEmptyTree() {
+      // Given
+      AABBTree<TestEntity> tree = new AABBTree<>();
+
+      // When
+      TreeCopy copy = copyFactory.apply(tree, id -> null);
+      List<TestEntity> overlaps = new ArrayList<>();
+      List<TestEntity> inFrustum = new ArrayList<>();
+      List<TestEntity> rayIntersections = new ArrayList<>();
+      copy.overlaps.accept(new AABBf(-1.0f, -1.0f, -1.0f, 1.0f, 1.0f, 1.0f), overlaps);
+      copy.inFrustum.accept(new Matrix4f().ortho(-1.0f, 1.0f, -1.0f, 1.0f, -1.0f, 1.0f), inFrustum);
+      copy.rayIntersections.accept(new Rayf(0.0f, 0.0f, 0.0f, 1.0f, 0.0f, 0.0f), rayIntersections);
+
+      // Then
+      assertEquals(0, copy.size);
+      assertTrue(overlaps.isEmpty());
+      assertTrue(inFrustum.isEmpty());
+      assertTrue(rayIntersections.isEmpty());
+   }
+
+   @Test
+   public void shouldDetectTheSameOverlapsAsTheTree() {
+      // Given
+      Map<Long, TestEntity> entitiesByID = new HashMap<>();
+      AABBTree<TestEntity> tree = givenRandomTree(500, entitiesByID);
+      TreeCopy copy = copyFactory.apply(tree, entitiesByID::get);
+      List<AABBf> queries = Arrays.asList(new AABBf(10.0f, 10.0f, 0.0f, 40.0f, 30.0f, 0.0f),
+                                          new AABBf(70.0f, 0.0f, -1.0f, 75.0f, 100.0f, 1.0f),
+                                          new AABBf(45.0f, 45.0f, 0.0f, 55.0f, 55.0f, 0.0f));
+
+      for (AABBf overlapWith : queries) {
+         // When
+         List<TestEntity> expected = new ArrayList<>();
+         List<TestEntity> result = new ArrayList<>();
+         tree.detectOverlaps(overlapWith, expected);
+         copy.overlaps.accept(overlapWith, result);
+
+         // Then
+         assertFalse(expected.isEmpty());
+         assertSameEntities(expected, result);
+      }
+      assertEquals(500, copy.size);
+   }
+
+   @Test
+   public void shouldDetectTheSameObjectsInFrustumAsTheTree() {
+      // Given
+      Map<Long, TestEntity> entitiesByID = new HashMap<>();
+      AABBTree<TestEntity> tree = givenRandomTree(500, entitiesByID);
+      TreeCopy copy = copyFactory.apply(tree, entitiesByID::get);
+      List<Matrix4f> worldViewProjections = Arrays.asList(
+            new Matrix4f().ortho(20.0f, 70.0f, 5.0f, 45.0f, -1.0f, 1.0f),
+            new Matrix4f().perspective((float) Math.toRadians(45.0f), 1.0f, 1.0f, 80.0f)
+                          .lookAt(50.0f, 50.0f, 60.0f, 30.0f, 40.0f, 0.0f, 0.0f, 1.0f, 0.0f));
+
+      for (Matrix4f worldViewProjection : worldViewProjections) {
+         // When
+         List<TestEntity> expected = new ArrayList<>();
+         List<TestEntity> result = new ArrayList<>();
+         tree.detectInFrustum(worldViewProjection, expected);
+         copy.inFrustum.accept(worldViewProjection, result);
+
+         // Then
+         assertFalse(expected.isEmpty());
+         assertTrue(expected.size() < 500);
+         assertSameEntities(expected, result);
+      }
+   }
+
+   @Test
+   public void shouldDetectTheSameRayIntersectionsAsTheTree() {
+      // Given
+      Map<Long, TestEntity> entitiesByID = new HashMap<>();
+      AABBTree<TestEntity> tree = givenRandomTree(500, entitiesByID);
+      TreeCopy copy = copyFactory.apply(tree, entitiesByID::get);
+      List<Rayf> rays = Arrays.asList(new Rayf(0.0f, 0.0f, 0.0f, 1.0f, 1.0f, 0.0f),
+                                      new Rayf(0.0f, 50.0f, 0.0f, 1.0f, 0.0f, 0.0f),
+                                      new Rayf(30.0f, 120.0f, 0.0f, 0.0f, -1.0f, 0.0f));
+
+      for (Rayf ray : rays) {
+         // When
+         List<TestEntity> expected = new ArrayList<>();
+         List<TestEntity> result = new ArrayList<>();
+         tree.detectRayIntersection(ray, expected);
+         copy.rayIntersections.accept(ray, result);
+
+         // Then
+         assertFalse(expected.isEmpty());
+         assertSameEntities(expected, result);
+      }
+   }
+
+   private static byte[] writeMapped(AABBTree<TestEntity> tree) {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      try {
+         MappedAABBTree.write(tree, Channels.newChannel(output));
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+      return output.toByteArray();
+   }
+
+   /**
+    * The queries shared by all copies of a tree.
+    */
+   private static final class TreeCopy
+   {
+      private final BiConsumer<AABBf, List<TestEntity>> overlaps;
+      private final BiConsumer<Matrix4fc, List<TestEntity>> inFrustum;
+      private final BiConsumer<Rayf, List<TestEntity>> rayIntersections;
+      private final int size;
+
+      private TreeCopy(BiConsumer<AABBf, List<TestEntity>> overlaps, BiConsumer<Matrix4fc, List<TestEntity>> inFrustum,
+                       BiConsumer<Rayf, List<TestEntity>> rayIntersections, int size) {
+         this.overlaps = overlaps;
+         this.inFrustum = inFrustum;
+         this.rayIntersections = rayIntersections;
+         this.size = size;
+      }
+   }
+}
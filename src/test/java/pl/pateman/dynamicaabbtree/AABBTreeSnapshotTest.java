@@ -0,0 +1,189 @@
+package pl.pateman.dynamicaabbtree;
+
+import org.joml.AABBf;
+import org.joml.Rayf;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static pl.pateman.dynamicaabbtree.TestEntities.assertSameEntities;
+import static pl.pateman.dynamicaabbtree.TestEntities.givenRandomEntities;
+
+public class AABBTreeSnapshotTest
+{
+   @Test
+   public void shouldReuseTheSnapshotUntilTheTreeChanges() {
+      // Given
+      List<TestEntity> entities = givenRandomEntities(50);
+      AABBTree<TestEntity> tree = new AABBTree<>();
+      for (TestEntity entity : entities) {
+         tree.add(entity);
+      }
+
+      // When
+      AABBTreeSnapshot<TestEntity> snapshot = tree.snapshot();
+      tree.update(entities.get(0));
+      AABBTreeSnapshot<TestEntity> unchangedSnapshot = tree.snapshot();
+      tree.remove(entities.get(1));
+      AABBTreeSnapshot<TestEntity> changedSnapshot = tree.snapshot();
+
+      // Then
+      assertSame(snapshot, unchangedSnapshot);
+      assertNotSame(snapshot, changedSnapshot);
+      assertEquals(50, snapshot.size());
+      assertEquals(49, changedSnapshot.size());
+   }
+
+   @Test
+   public void shouldKeepTheSnapshotUnchangedWhileTheTreeIsModified() {
+      // Given
+      List<TestEntity> entities = givenRandomEntities(200);
+      AABBTree<TestEntity> tree = new AABBTree<>();
+      for (TestEntity entity : entities) {
+         tree.add(entity);
+      }
+      AABBf overlapWith = new AABBf(10.0f, 10.0f, 0.0f, 40.0f, 30.0f, 0.0f);
+      List<TestEntity> expected = new ArrayList<>();
+      tree.detectOverlaps(overlapWith, expected);
+      AABBTreeSnapshot<TestEntity> snapshot = tree.snapshot();
+
+      // When
+      for (int i = 0; i < entities.size(); i++) {
+         TestEntity entity = entities.get(i);
+         if (i % 2 == 0) {
+            tree.remove(entity);
+         } else {
+            entity.setPosition(200.0f + i, 200.0f);
+            tree.update(entity);
+         }
+      }
+      List<TestEntity> result = new ArrayList<>();
+      List<TestEntity> currentResult = new ArrayList<>();
+      snapshot.detectOverlaps(overlapWith, result);
+      tree.snapshot().detectOverlaps(overlapWith, currentResult);
+
+      // Then
+      assertFalse(expected.isEmpty());
+      assertSameEntities(expected, result);
+      assertTrue(currentResult.isEmpty());
+   }
+
+   @Test
+   public void shouldCopyOnlyThePagesOfChangedNodes() {
+      // Given
+      List<TestEntity> entities = givenRandomEntities(2000);
+      AABBTree<TestEntity> tree = new AABBTree<>();
+      for (TestEntity entity : entities) {
+         tree.add(entity);
+      }
+      AABBTreeSnapshot<TestEntity> snapshot = tree.snapshot();
+
+      // When
+      TestEntity movedEntity = entities.get(0);
+      movedEntity.setPosition(50.0f, 150.0f);
+      tree.update(movedEntity);
+      AABBTreeSnapshot<TestEntity> changedSnapshot = tree.snapshot();
+
+      // Then
+      int height = tree.getNodes().get(tree.getRoot()).getHeight();
+      int sharedPageCount = 0;
+      for (int i = 0; i < changedSnapshot.getPageCount(); i++) {
+         if (changedSnapshot.sharesPage(snapshot, i)) {
+            sharedPageCount++;
+         }
+      }
+      // Only the pages on the paths from the removed and the reinserted leaf to the root are copied.
+      assertTrue(changedSnapshot.getPageCount() > 2 * height + 2);
+      assertTrue(sharedPageCount >= changedSnapshot.getPageCount() - 2 * height - 2);
+      List<TestEntity> result = new ArrayList<>();
+      changedSnapshot.detectOverlaps(new AABBf(49.0f, 149.0f, 0.0f, 51.0f, 151.0f, 0.0f), result);
+      assertTrue(result.contains(movedEntity));
+   }
+
+   @Test
+   public void shouldMatchTheTreeAfterOptimizing() {
+      // Given
+      List<TestEntity> entities = givenRandomEntities(5000);
+      AABBTree<TestEntity> tree = new AABBTree<>();
+      for (TestEntity entity : entities) {
+         tree.add(entity);
+      }
+      tree.snapshot();
+
+      // When
+      int rotationCount = tree.optimize(tree.getNodes().size());
+      // Untouched pages of the previous snapshot are consistent on their own, so some of them have to be copied too.
+      TestEntity movedEntity = entities.get(0);
+      movedEntity.setPosition(50.0f, 150.0f);
+      tree.update(movedEntity);
+      AABBTreeSnapshot<TestEntity> snapshot = tree.snapshot();
+
+      // Then
+      assertTrue(rotationCount > 0);
+      List<TestEntity> expected = new ArrayList<>();
+      List<TestEntity> result = new ArrayList<>();
+      for (int x = 0; x < 100; x += 10) {
+         for (int y = 0; y < 160; y += 10) {
+            AABBf overlapWith = new AABBf(x, y, 0.0f, x + 10.0f, y + 10.0f, 0.0f);
+            tree.detectOverlaps(overlapWith, expected);
+            snapshot.detectOverlaps(overlapWith, result);
+            assertSameEntities(expected, result);
+         }
+      }
+   }
+
+   @Test
+   public void shouldMatchTheTreeAfterEveryKindOfChange() {
+      // Given
+      List<TestEntity> entities = givenRandomEntities(400);
+      AABBTree<TestEntity> tree = new AABBTree<>();
+      Random random = new Random(4321L);
+      List<AABBTreeSnapshot<TestEntity>> snapshots = new ArrayList<>();
+      List<List<TestEntity>> snapshotResults = new ArrayList<>();
+      AABBf overlapWith = new AABBf(20.0f, 20.0f, 0.0f, 60.0f, 60.0f, 0.0f);
+      Rayf ray = new Rayf(0.0f, 0.0f, 0.0f, 1.0f, 1.0f, 0.0f);
+
+      // When
+      for (int step = 0; step < 300; step++) {
+         TestEntity entity = entities.get(random.nextInt(entities.size()));
+         int operation = random.nextInt(10);
+         if (operation < 4) {
+            tree.add(entity);
+         } else if (operation < 6) {
+            tree.remove(entity);
+         } else if (operation < 8) {
+            entity.setPosition(random.nextFloat() * 100.0f, random.nextFloat() * 100.0f);
+            tree.update(entity);
+         } else if (operation == 8) {
+            tree.optimize(50);
+         } else if (step % 50 == 9) {
+            tree.compact();
+         }
+
+         AABBTreeSnapshot<TestEntity> snapshot = tree.snapshot();
+         List<TestEntity> expected = new ArrayList<>();
+         List<TestEntity> result = new ArrayList<>();
+         tree.detectOverlaps(overlapWith, expected);
+         snapshot.detectOverlaps(overlapWith, result);
+         assertSameEntities(expected, result);
+         tree.detectRayIntersection(ray, expected);
+         snapshot.detectRayIntersection(ray, result);
+         assertSameEntities(expected, result);
+
+         snapshots.add(snapshot);
+         List<TestEntity> overlaps = new ArrayList<>();
+         snapshot.detectOverlaps(overlapWith, overlaps);
+         snapshotResults.add(overlaps);
+      }
+
+      // Then
+      for (int i = 0; i < snapshots.size(); i++) {
+         List<TestEntity> result = new ArrayList<>();
+         snapshots.get(i).detectOverlaps(overlapWith, result);
+         assertSameEntities(snapshotResults.get(i), result);
+      }
+   }
+}
@@ -1,14 +1,33 @@
 package pl.pateman.dynamicaabbtree;
 
 import org.joml.AABBf;
+import org.joml.Matrix4f;
 import org.joml.Rayf;
+import org.joml.Vector3f;
+import org.junit.Assume;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.lang.management.ManagementFactory;
+
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.*;
 import static pl.pateman.dynamicaabbtree.AABBTreeNode.INVALID_NODE_INDEX;
+import static pl.pateman.dynamicaabbtree.AABBUtils.expand;
 
 public class AABBTreeTest
 {
@@ -186,7 +205,7 @@ public class AABBTreeTest
 
       // Then
       assertFalse(tree.getFreeNodes().isEmpty());
-      assertEquals(0, (int) tree.getFreeNodes().peek());
+      assertEquals(0, tree.getFreeNodes().peek());
    }
 
    @Test
@@ -349,6 +368,37 @@ public class AABBTreeTest
       assertEquals(givenPair, filteredCollisionPair);
    }
 
+   @Test
+   public void shouldDetectEveryCollidingPairExactlyOnce() {
+      // Given
+      AABBTree<TestEntity> tree = givenTree();
+      List<TestEntity> entities = TestEntities.givenRandomEntities(300);
+      for (TestEntity entity : entities) {
+         tree.add(entity);
+      }
+      AABBf aabbA = new AABBf();
+      AABBf aabbB = new AABBf();
+      Set<CollisionPair<TestEntity>> expected = new HashSet<>();
+      for (int i = 0; i < entities.size(); i++) {
+         for (int j = i + 1; j < entities.size(); j++) {
+            expand(entities.get(i).getAABB(aabbA), AABBTree.DEFAULT_FAT_AABB_MARGIN);
+            expand(entities.get(j).getAABB(aabbB), AABBTree.DEFAULT_FAT_AABB_MARGIN);
+            if (aabbA.testAABB(aabbB)) {
+               expected.add(new CollisionPair<>(entities.get(i), entities.get(j)));
+            }
+         }
+      }
+
+      // When
+      List<CollisionPair<TestEntity>> pairs = new ArrayList<>();
+      tree.detectCollisionPairs(pairs);
+
+      // Then
+      assertFalse(expected.isEmpty());
+      assertEquals(expected.size(), pairs.size());
+      assertEquals(expected, new HashSet<>(pairs));
+   }
+
    @Test
    public void shouldDetectRayIntersection() {
       // Given
@@ -368,6 +418,267 @@ public class AABBTreeTest
       assertEquals(1L, intersecting.get(0).getID());
    }
 
+   @Test
+   public void shouldBuildAValidTreeFromACollection() {
+      // Given
+      AABBTree<TestEntity> tree = givenTree();
+      List<TestEntity> entities = TestEntities.givenRandomEntities(1000);
+      AABBf overlapWith = new AABBf(10.0f, 10.0f, 0.0f, 40.0f, 30.0f, 0.0f);
+      AABBTree<TestEntity> incrementalTree = givenTree();
+      for (TestEntity entity : entities) {
+         incrementalTree.add(entity);
+      }
+
+      // When
+      tree.addAll(entities);
+      List<TestEntity> result = new ArrayList<>();
+      List<TestEntity> expected = new ArrayList<>();
+      tree.detectOverlaps(overlapWith, result);
+      incrementalTree.detectOverlaps(overlapWith, expected);
+
+      // Then
+      assertEquals(1000, tree.size());
+      assertValidTree(tree);
+      TestEntities.assertSameEntities(expected, result);
+   }
+
+   @Test
+   public void shouldAddAllObjectsToANonEmptyTree() {
+      // Given
+      AABBTree<TestEntity> tree = givenTree();
+      List<TestEntity> entities = TestEntities.givenRandomEntities(300);
+      for (TestEntity entity : entities.subList(0, 100)) {
+         tree.add(entity);
+      }
+      tree.remove(entities.get(0));
+
+      // When
+      tree.addAll(entities.subList(50, 300));
+      tree.remove(entities.get(299));
+      tree.add(entities.get(0));
+
+      // Then
+      assertEquals(299, tree.size());
+      assertValidTree(tree);
+      assertTrue(tree.contains(entities.get(0)));
+      assertFalse(tree.contains(entities.get(299)));
+   }
+
+   @Test
+   public void shouldKeepTheLastObjectWithTheSameIDInABatch() {
+      // Given
+      AABBTree<TestEntity> tree = givenTree();
+      List<TestEntity> entities = new ArrayList<>(TestEntities.givenRandomEntities(50));
+      tree.add(entities.get(0));
+      TestEntity duplicate = new TestEntity(10, 200.0f, 200.0f, 1.0f, 1.0f);
+      TestEntity existingDuplicate = new TestEntity(1, 300.0f, 300.0f, 1.0f, 1.0f);
+      entities.add(duplicate);
+      entities.add(existingDuplicate);
+
+      // When
+      tree.addAll(entities);
+
+      // Then
+      assertEquals(50, tree.size());
+      assertValidTree(tree);
+      List<TestEntity> result = new ArrayList<>();
+      tree.detectOverlaps(new AABBf(199.0f, 199.0f, 0.0f, 301.0f, 301.0f, 0.0f), result);
+      TestEntities.assertSameEntities(Arrays.asList(duplicate, existingDuplicate), result);
+   }
+
+   @Test
+   public void shouldBuildTheSameTreeInParallelRegardlessOfParallelism() {
+      // Given
+      List<TestEntity> entities = TestEntities.givenRandomEntities(20000);
+      AABBTree<TestEntity> serialTree = givenTree();
+      AABBTree<TestEntity> singleThreadTree = givenTree();
+      AABBTree<TestEntity> multiThreadTree = givenTree();
+      ForkJoinPool singleThreadPool = new ForkJoinPool(1);
+      ForkJoinPool multiThreadPool = new ForkJoinPool(4);
+
+      // When
+      try {
+         serialTree.addAll(entities);
+         singleThreadTree.addAll(entities, singleThreadPool);
+         multiThreadTree.addAll(entities, multiThreadPool);
+      } finally {
+         singleThreadPool.shutdown();
+         multiThreadPool.shutdown();
+      }
+
+      // Then
+      assertValidTree(multiThreadTree);
+      FlatAABBTree<TestEntity> expected = serialTree.toFlatTree();
+      for (AABBTree<TestEntity> tree : Arrays.asList(singleThreadTree, multiThreadTree)) {
+         FlatAABBTree<TestEntity> actual = tree.toFlatTree();
+         assertArrayEquals(expected.getBounds(), actual.getBounds(), 0.0f);
+         assertArrayEquals(expected.getData(), actual.getData());
+      }
+   }
+
+   @Test
+   public void shouldOptimizeReduceTheSAHCostOfTheTree() {
+      // Given
+      AABBTree<TestEntity> tree = givenTree();
+      List<TestEntity> entities = TestEntities.givenRandomEntities(500);
+      entities.sort((a, b) -> Float.compare(a.getAABB(new AABBf()).minX, b.getAABB(new AABBf()).minX));
+      for (TestEntity entity : entities) {
+         tree.add(entity);
+      }
+      AABBf overlapWith = new AABBf(10.0f, 10.0f, 0.0f, 40.0f, 30.0f, 0.0f);
+      List<TestEntity> expected = new ArrayList<>();
+      tree.detectOverlaps(overlapWith, expected);
+      float costBefore = tree.getTotalSAHCost();
+      int heightBefore = tree.getNodes().get(tree.getRoot()).getHeight();
+
+      // When
+      int rotationCount = 0;
+      for (int i = 0; i < 100; i++) {
+         rotationCount += tree.optimize(256);
+      }
+      List<TestEntity> result = new ArrayList<>();
+      tree.detectOverlaps(overlapWith, result);
+
+      // Then
+      assertTrue(rotationCount > 0);
+      assertTrue(tree.getTotalSAHCost() < costBefore);
+      assertTrue(tree.getNodes().get(tree.getRoot()).getHeight() <= heightBefore);
+      assertValidTree(tree);
+      TestEntities.assertSameEntities(expected, result);
+   }
+
+   @Test
+   public void shouldComputeTheSAHCostOfTheTree() {
+      // Given
+      AABBTree<TestEntity> tree = new AABBTree<>(new AreaAABBHeuristicFunction<>(), 0.0f);
+      float emptyTreeCost = tree.getTotalSAHCost();
+      tree.add(new TestEntity(1, 0.0f, 0.0f, 1.0f, 1.0f));
+      tree.add(new TestEntity(2, 3.0f, 0.0f, 1.0f, 1.0f));
+      tree.add(new TestEntity(3, 0.0f, 3.0f, 1.0f, 1.0f));
+
+      // When
+      float cost = tree.getTotalSAHCost();
+
+      // Then
+      assertEquals(0.0f, emptyTreeCost, 0.0f);
+      assertEquals(1.25f, cost, 1.0e-6f);
+   }
+
+   @Test
+   public void shouldRefitTheTreeWithoutChangingItsStructure() {
+      // Given
+      AABBTree<TestEntity> tree = givenTree();
+      List<TestEntity> entities = TestEntities.givenRandomEntities(300);
+      for (TestEntity entity : entities) {
+         tree.add(entity);
+      }
+      int rootBeforeRefit = tree.getRoot();
+      int nodeCountBeforeRefit = tree.getNodes().size();
+      moveAll(entities, 3.0f, -2.0f);
+
+      // When
+      tree.refit();
+
+      // Then
+      assertEquals(rootBeforeRefit, tree.getRoot());
+      assertEquals(nodeCountBeforeRefit, tree.getNodes().size());
+      assertValidTree(tree);
+      assertSameOverlapsAsIncrementalTree(tree, entities);
+   }
+
+   @Test
+   public void shouldKeepPredictedFatAABBsWhenRefitting() {
+      // Given
+      AABBTree<TestEntity> tree = givenTree();
+      TestEntity predicted = new TestEntity(1, 0.0f, 0.0f, 2.0f, 2.0f);
+      TestEntity moved = new TestEntity(2, 20.0f, 0.0f, 2.0f, 2.0f);
+      tree.add(predicted);
+      tree.add(moved);
+      predicted.setPosition(5.0f, 0.0f);
+      tree.update(predicted, new Vector3f(10.0f, 0.0f, 0.0f));
+      AABBf predictedFatAABB = new AABBf(tree.getFatAABB(predicted));
+
+      // When
+      predicted.setPosition(8.0f, 0.0f);
+      moved.setPosition(40.0f, 0.0f);
+      tree.refit();
+
+      // Then
+      assertTrue(predictedFatAABB.maxX >= 17.0f);
+      assertEquals(predictedFatAABB, tree.getFatAABB(predicted));
+      assertEquals(expand(moved.getAABB(new AABBf()), AABBTree.DEFAULT_FAT_AABB_MARGIN), tree.getFatAABB(moved));
+      assertValidTree(tree);
+   }
+
+   @Test
+   public void shouldRebuildTheTreeFromMovedObjects() {
+      // Given
+      AABBTree<TestEntity> tree = givenTree();
+      List<TestEntity> entities = TestEntities.givenRandomEntities(300);
+      for (TestEntity entity : entities) {
+         tree.add(entity);
+      }
+      tree.remove(entities.remove(0));
+      moveAll(entities, -4.0f, 1.0f);
+
+      // When
+      tree.rebuild();
+
+      // Then
+      assertEquals(299, tree.size());
+      assertValidTree(tree);
+      assertSameOverlapsAsIncrementalTree(tree, entities);
+   }
+
+   private void moveAll(List<TestEntity> entities, float dx, float dy) {
+      AABBf aabb = new AABBf();
+      for (TestEntity entity : entities) {
+         entity.getAABB(aabb);
+         entity.setPosition(aabb.minX + dx, aabb.minY + dy);
+      }
+   }
+
+   private void assertSameOverlapsAsIncrementalTree(AABBTree<TestEntity> tree, List<TestEntity> entities) {
+      AABBTree<TestEntity> incrementalTree = givenTree();
+      for (TestEntity entity : entities) {
+         incrementalTree.add(entity);
+      }
+      AABBf overlapWith = new AABBf(10.0f, 10.0f, 0.0f, 40.0f, 30.0f, 0.0f);
+      List<TestEntity> result = new ArrayList<>();
+      List<TestEntity> expected = new ArrayList<>();
+      tree.detectOverlaps(overlapWith, result);
+      incrementalTree.detectOverlaps(overlapWith, expected);
+      TestEntities.assertSameEntities(expected, result);
+   }
+
+   static void assertValidTree(AABBTree<TestEntity> tree) {
+      if (tree.getRoot() == INVALID_NODE_INDEX) {
+         assertEquals(0, tree.size());
+         return;
+      }
+      List<AABBTreeNode<TestEntity>> nodes = tree.getNodes();
+      assertEquals(INVALID_NODE_INDEX, nodes.get(tree.getRoot()).getParent());
+      assertEquals(tree.size(), countLeavesAndValidate(nodes, tree.getRoot()));
+   }
+
+   private static int countLeavesAndValidate(List<AABBTreeNode<TestEntity>> nodes, int nodeIndex) {
+      AABBTreeNode<TestEntity> node = nodes.get(nodeIndex);
+      assertEquals(nodeIndex, node.getIndex());
+      if (node.isLeaf()) {
+         assertEquals(0, node.getHeight());
+         assertNotNull(node.getData());
+         return 1;
+      }
+      AABBTreeNode<TestEntity> left = nodes.get(node.getLeftChild());
+      AABBTreeNode<TestEntity> right = nodes.get(node.getRightChild());
+      assertEquals(nodeIndex, left.getParent());
+      assertEquals(nodeIndex, right.getParent());
+      assertEquals(1 + Math.max(left.getHeight(), right.getHeight()), node.getHeight());
+      assertTrue(AABBUtils.containsAABB(node.getAABB(), left.getAABB()));
+      assertTrue(AABBUtils.containsAABB(node.getAABB(), right.getAABB()));
+      return countLeavesAndValidate(nodes, left.getIndex()) + countLeavesAndValidate(nodes, right.getIndex());
+   }
+
    @Test
    public void shouldRestoreNodeToInitialStateOnReuse() {
       // Given
@@ -392,6 +703,751 @@ public class AABBTreeTest
       assertNull(node.getData());
    }
 
+   @Test
+   public void shouldSkipUpdateIfObjectStillFitsInFatAABB() {
+      // Given
+      AABBTree<TestEntity> tree = givenTree();
+      TestEntity entity1 = new TestEntity(1, 0.0f, 0.0f, 10.0f, 10.0f);
+      TestEntity entity2 = new TestEntity(2, -5.0f, 0.0f, 10.0f, 10.0f);
+      tree.add(entity1);
+      tree.add(entity2);
+      int rootBeforeUpdate = tree.getRoot();
+
+      // When
+      entity1.setPosition(0.1f, -0.1f);
+      tree.update(entity1);
+
+      // Then
+      assertEquals(1L, tree.getSkippedUpdateCount());
+      assertEquals(0L, tree.getReinsertedUpdateCount());
+      assertEquals(rootBeforeUpdate, tree.getRoot());
+      assertTrue(tree.getFreeNodes().isEmpty());
+   }
+
+   @Test
+   public void shouldReinsertObjectIfItLeavesItsFatAABB() {
+      // Given
+      AABBTree<TestEntity> tree = givenTree();
+      TestEntity entity1 = new TestEntity(1, 0.0f, 0.0f, 10.0f, 10.0f);
+      TestEntity entity2 = new TestEntity(2, -5.0f, 0.0f, 10.0f, 10.0f);
+      tree.add(entity1);
+      tree.add(entity2);
+
+      // When
+      entity1.setPosition(30.0f, 0.0f);
+      tree.update(entity1);
+      List<TestEntity> result = new ArrayList<>();
+      tree.detectOverlaps(new AABBf(35.0f, 5.0f, 0.0f, 36.0f, 6.0f, 0.0f), result);
+
+      // Then
+      assertEquals(0L, tree.getSkippedUpdateCount());
+      assertEquals(1L, tree.getReinsertedUpdateCount());
+      assertEquals(1, result.size());
+      assertEquals(1L, result.get(0).getID());
+   }
+
+   @Test
+   public void shouldExtendFatAABBInTheDirectionOfMotion() {
+      // Given
+      AABBTree<TestEntity> tree = givenTree();
+      TestEntity entity1 = new TestEntity(1, 0.0f, 0.0f, 10.0f, 10.0f);
+      TestEntity entity2 = new TestEntity(2, -5.0f, 0.0f, 10.0f, 10.0f);
+      tree.add(entity1);
+      tree.add(entity2);
+      Vector3f displacement = new Vector3f(2.0f, 0.0f, 0.0f);
+
+      // When
+      entity1.setPosition(2.0f, 0.0f);
+      tree.update(entity1, displacement);
+      entity1.setPosition(4.0f, 0.0f);
+      tree.update(entity1, displacement);
+
+      // Then
+      assertEquals(1L, tree.getReinsertedUpdateCount());
+      assertEquals(1L, tree.getSkippedUpdateCount());
+   }
+
+   @Test
+   public void shouldReinsertObjectIfItsPredictedFatAABBIsOversized() {
+      // Given
+      AABBTree<TestEntity> tree = givenTree();
+      TestEntity entity1 = new TestEntity(1, 0.0f, 0.0f, 10.0f, 10.0f);
+      TestEntity entity2 = new TestEntity(2, -5.0f, 0.0f, 10.0f, 10.0f);
+      tree.add(entity1);
+      tree.add(entity2);
+      entity1.setPosition(2.0f, 0.0f);
+      tree.update(entity1, new Vector3f(20.0f, 0.0f, 0.0f));
+
+      // When
+      tree.update(entity1, new Vector3f());
+
+      // Then
+      assertEquals(2L, tree.getReinsertedUpdateCount());
+      assertEquals(0L, tree.getSkippedUpdateCount());
+   }
+
+   @Test
+   public void shouldNotAllocateWhenUpdatingObjectsInsideTheirFatAABBs() {
+      // Given
+      com.sun.management.ThreadMXBean allocationBean = givenAllocationBean();
+      AABBTree<TestEntity> tree = new AABBTree<>();
+      List<TestEntity> entities = TestEntities.givenRandomEntities(500);
+      for (TestEntity entity : entities) {
+         tree.add(entity);
+      }
+      long threadId = Thread.currentThread().getId();
+      updateAll(tree, entities, 100);
+
+      // When
+      long allocatedBefore = allocationBean.getThreadAllocatedBytes(threadId);
+      updateAll(tree, entities, 100);
+      long allocatedAfter = allocationBean.getThreadAllocatedBytes(threadId);
+
+      // Then
+      assertEquals(0L, allocatedAfter - allocatedBefore);
+      assertEquals(0L, tree.getReinsertedUpdateCount());
+   }
+
+   private void updateAll(AABBTree<TestEntity> tree, List<TestEntity> entities, int iterations) {
+      for (int i = 0; i < iterations; i++) {
+         for (int j = 0; j < entities.size(); j++) {
+            TestEntity entity = entities.get(j);
+            tree.update(entity);
+            assertTrue(tree.contains(entity));
+         }
+      }
+   }
+
+   @Test
+   public void shouldVisitOverlappingObjectsUntilTheVisitorStops() {
+      // Given
+      AABBTree<TestEntity> tree = givenTree();
+      TestEntity entity1 = new TestEntity(1, 0.0f, 0.0f, 10.0f, 10.0f);
+      TestEntity entity2 = new TestEntity(2, -5.0f, 0.0f, 10.0f, 10.0f);
+      TestEntity entity3 = new TestEntity(3, 2.0f, 2.0f, 10.0f, 10.0f);
+      tree.add(entity1);
+      tree.add(entity2);
+      tree.add(entity3);
+      AABBf overlapWith = new AABBf(1.0f, 5.1f, 0.0f, 2.0f, 10.0f, 0.0f);
+
+      // When
+      List<TestEntity> visited = new ArrayList<>();
+      List<TestEntity> visitedUntilStopped = new ArrayList<>();
+      tree.query(overlapWith, e -> {
+         visited.add(e);
+         return TreeQueryVisitor.VisitResult.CONTINUE;
+      });
+      tree.query(overlapWith, e -> {
+         visitedUntilStopped.add(e);
+         return TreeQueryVisitor.VisitResult.STOP;
+      });
+
+      // Then
+      assertEquals(3, visited.size());
+      assertEquals(1, visitedUntilStopped.size());
+   }
+
+   @Test
+   public void shouldCountAndTestOverlaps() {
+      // Given
+      AABBTree<TestEntity> tree = givenTree();
+      TestEntity entity1 = new TestEntity(1, 0.0f, 0.0f, 10.0f, 10.0f);
+      TestEntity entity2 = new TestEntity(2, -5.0f, 0.0f, 10.0f, 10.0f);
+      tree.add(entity1);
+      tree.add(entity2);
+      AABBf overlapWith = new AABBf(1.0f, 5.1f, 0.0f, 2.0f, 10.0f, 0.0f);
+      AABBf freeSpot = new AABBf(1.0f, 10.5f, 0.0f, 2.0f, 10.0f, 0.0f);
+
+      // When
+      int count = tree.countOverlaps(overlapWith);
+      int filteredCount = tree.countOverlaps(overlapWith, e -> e.getID() != 2);
+
+      // Then
+      assertEquals(2, count);
+      assertEquals(1, filteredCount);
+      assertTrue(tree.anyOverlap(overlapWith));
+      assertFalse(tree.anyOverlap(overlapWith, e -> e.getID() > 2));
+      assertFalse(tree.anyOverlap(freeSpot));
+   }
+
+   @Test
+   public void shouldNotAllocateDuringSteadyStateQueries() {
+      // Given
+      com.sun.management.ThreadMXBean allocationBean = givenAllocationBean();
+      AABBTree<TestEntity> tree = new AABBTree<>();
+      for (TestEntity entity : TestEntities.givenRandomEntities(500)) {
+         tree.add(entity);
+      }
+      AABBf overlapWith = new AABBf(10.0f, 10.0f, 0.0f, 60.0f, 60.0f, 0.0f);
+      Rayf ray = new Rayf(0.0f, 0.0f, 0.0f, 1.0f, 1.0f, 0.0f);
+      Matrix4f worldViewProjection = new Matrix4f().ortho(0.0f, 50.0f, 0.0f, 50.0f, -1.0f, 1.0f);
+      Vector3f nearestTo = new Vector3f(50.0f, 50.0f, 0.0f);
+      RayCastHit<TestEntity> hit = new RayCastHit<>();
+      List<TestEntity> result = new ArrayList<>(500);
+      long threadId = Thread.currentThread().getId();
+      runQueries(tree, overlapWith, ray, worldViewProjection, nearestTo, hit, result, 1000);
+
+      // When
+      long allocatedBefore = allocationBean.getThreadAllocatedBytes(threadId);
+      runQueries(tree, overlapWith, ray, worldViewProjection, nearestTo, hit, result, 1000);
+      long allocatedAfter = allocationBean.getThreadAllocatedBytes(threadId);
+
+      // Then
+      assertEquals(0L, allocatedAfter - allocatedBefore);
+   }
+
+   @Test
+   public void shouldFindTheNearestObjectsInOrderOfDistance() {
+      // Given
+      AABBTree<TestEntity> tree = givenTree();
+      List<TestEntity> entities = TestEntities.givenRandomEntities(500);
+      for (TestEntity entity : entities) {
+         tree.add(entity);
+      }
+      Vector3f point = new Vector3f(37.0f, 61.0f, 0.0f);
+      List<TestEntity> expected = new ArrayList<>(entities);
+      expected.sort((a, b) -> Float.compare(distanceSquared(a, point), distanceSquared(b, point)));
+
+      // When
+      TestEntity nearest = tree.nearest(point);
+      List<TestEntity> nearestFive = new ArrayList<>();
+      tree.nearest(point, 5, nearestFive);
+
+      // Then
+      assertEquals(expected.get(0), nearest);
+      assertEquals(expected.subList(0, 5), nearestFive);
+   }
+
+   @Test
+   public void shouldFindTheNearestObjectsWithinADistance() {
+      // Given
+      AABBTree<TestEntity> tree = givenTree();
+      List<TestEntity> entities = TestEntities.givenRandomEntities(500);
+      for (TestEntity entity : entities) {
+         tree.add(entity);
+      }
+      Vector3f point = new Vector3f(20.0f, 80.0f, 0.0f);
+      DistanceFunction<TestEntity> centerDistance = (object, queryPoint) -> {
+         AABBf aabb = object.getAABB(new AABBf());
+         return queryPoint.distance((aabb.minX + aabb.maxX) * 0.5f, (aabb.minY + aabb.maxY) * 0.5f, 0.0f);
+      };
+      List<TestEntity> expected = new ArrayList<>();
+      for (TestEntity entity : entities) {
+         if (entity.getID() % 2 == 0 && centerDistance.getDistance(entity, point) <= 15.0f) {
+            expected.add(entity);
+         }
+      }
+      expected.sort((a, b) -> Float.compare(centerDistance.getDistance(a, point), centerDistance.getDistance(b, point)));
+
+      // When
+      List<TestEntity> result = new ArrayList<>();
+      tree.nearestWithin(point, 15.0f, entity -> entity.getID() % 2 == 0, centerDistance, result);
+
+      // Then
+      assertFalse(expected.isEmpty());
+      assertEquals(expected, result);
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void shouldRejectANegativeNearestDistance() {
+      // Given
+      AABBTree<TestEntity> tree = givenTree();
+      tree.add(new TestEntity(1, 0.0f, 0.0f, 1.0f, 1.0f));
+
+      // When
+      tree.nearestWithin(new Vector3f(), -5.0f, new ArrayList<>());
+   }
+
+   @Test
+   public void shouldRayCastTheClosestObject() {
+      // Given
+      AABBTree<TestEntity> tree = givenTree();
+      List<TestEntity> entities = TestEntities.givenRandomEntities(500);
+      for (TestEntity entity : entities) {
+         tree.add(entity);
+      }
+      Rayf ray = new Rayf(-10.0f, 5.0f, 0.0f, 1.0f, 0.8f, 0.0f);
+      TestEntity expected = null;
+      float expectedDistance = Float.POSITIVE_INFINITY;
+      for (TestEntity entity : entities) {
+         float distance = AABBUtils.getRayEntryDistance(entity.getAABB(new AABBf()), ray);
+         if (distance < expectedDistance) {
+            expected = entity;
+            expectedDistance = distance;
+         }
+      }
+      List<TestEntity> candidates = new ArrayList<>();
+      tree.detectRayIntersection(ray, candidates);
+      int[] callbackCount = new int[1];
+      RayCastCallback<TestEntity> countingCallback = (object, castRay, maxDistance) -> {
+         callbackCount[0]++;
+         return AABBUtils.getRayEntryDistance(object.getAABB(new AABBf()), castRay);
+      };
+
+      // When
+      RayCastHit<TestEntity> hit = new RayCastHit<>();
+      boolean anyHit = tree.rayCast(ray, Float.POSITIVE_INFINITY, countingCallback, hit);
+
+      // Then
+      assertTrue(anyHit);
+      assertEquals(expected, hit.getObject());
+      assertEquals(expectedDistance, hit.getDistance(), 0.0f);
+      assertTrue(callbackCount[0] < candidates.size());
+   }
+
+   @Test
+   public void shouldRayCastOnlyWithinTheMaxDistanceAndSkipMissedObjects() {
+      // Given
+      AABBTree<TestEntity> tree = givenTree();
+      TestEntity entity1 = new TestEntity(1, 10.0f, 0.0f, 2.0f, 2.0f);
+      TestEntity entity2 = new TestEntity(2, 20.0f, 0.0f, 2.0f, 2.0f);
+      TestEntity entity3 = new TestEntity(3, 30.0f, 0.0f, 2.0f, 2.0f);
+      tree.add(entity1);
+      tree.add(entity2);
+      tree.add(entity3);
+      Rayf ray = new Rayf(0.0f, 1.0f, 0.0f, 1.0f, 0.0f, 0.0f);
+      RayCastCallback<TestEntity> skipFirst = (object, castRay, maxDistance) ->
+            object.getID() == 1L ? -1.0f : AABBUtils.getRayEntryDistance(object.getAABB(new AABBf()), castRay);
+      RayCastHit<TestEntity> hit = new RayCastHit<>();
+
+      // When & Then
+      assertTrue(tree.rayCast(ray, 100.0f, hit));
+      assertEquals(entity1, hit.getObject());
+      assertEquals(10.0f, hit.getDistance(), 0.0f);
+      assertTrue(tree.rayCast(ray, 100.0f, skipFirst, hit));
+      assertEquals(entity2, hit.getObject());
+      assertFalse(tree.rayCast(ray, 5.0f, hit));
+      assertNull(hit.getObject());
+   }
+
+   @Test
+   public void shouldNotVisitAnyObjectWhenAnUnboundedRayMissesEverything() {
+      // Given
+      AABBTree<TestEntity> tree = givenTree();
+      for (TestEntity entity : TestEntities.givenRandomEntities(1000)) {
+         tree.add(entity);
+      }
+      Rayf ray = new Rayf(-10.0f, -10.0f, 0.0f, -1.0f, 0.5f, 0.0f);
+      int[] callbackCount = new int[1];
+      RayCastCallback<TestEntity> countingCallback = (object, castRay, maxDistance) -> {
+         callbackCount[0]++;
+         return AABBUtils.getRayEntryDistance(object.getAABB(new AABBf()), castRay);
+      };
+      RayCastHit<TestEntity> hit = new RayCastHit<>();
+
+      // When
+      boolean anyHit = tree.rayCast(ray, Float.POSITIVE_INFINITY, countingCallback, hit);
+
+      // Then
+      assertFalse(anyHit);
+      assertNull(hit.getObject());
+      assertEquals(0, callbackCount[0]);
+   }
+
+   private float distanceSquared(TestEntity entity, Vector3f point) {
+      return AABBUtils.getDistanceSquared(entity.getAABB(new AABBf()), point);
+   }
+
+   @Test
+   public void shouldRunQueriesConcurrently() throws Exception {
+      // Given
+      AABBTree<TestEntity> tree = givenTree();
+      for (TestEntity entity : TestEntities.givenRandomEntities(500)) {
+         tree.add(entity);
+      }
+      FlatAABBTree<TestEntity> flatTree = tree.toFlatTree();
+      int queryCount = 64;
+      List<List<TestEntity>> expected = new ArrayList<>();
+      for (int i = 0; i < queryCount; i++) {
+         expected.add(runConcurrentQuery(tree, flatTree, i));
+      }
+      ExecutorService executor = Executors.newFixedThreadPool(4);
+
+      // When
+      List<Future<Boolean>> results = new ArrayList<>();
+      try {
+         for (int thread = 0; thread < 4; thread++) {
+            results.add(executor.submit(() -> {
+               boolean matches = true;
+               for (int iteration = 0; iteration < 50; iteration++) {
+                  for (int i = 0; i < queryCount; i++) {
+                     matches &= expected.get(i).equals(runConcurrentQuery(tree, flatTree, i));
+                  }
+               }
+               return matches;
+            }));
+         }
+
+         // Then
+         for (Future<Boolean> result : results) {
+            assertTrue(result.get());
+         }
+      } finally {
+         executor.shutdown();
+      }
+   }
+
+   @Test
+   public void shouldRunBatchedQueriesInParallel() {
+      // Given
+      AABBTree<TestEntity> tree = givenTree();
+      for (TestEntity entity : TestEntities.givenRandomEntities(500)) {
+         tree.add(entity);
+      }
+      int queryCount = 200;
+      List<AABBf> overlapQueries = new ArrayList<>();
+      List<Rayf> rays = new ArrayList<>();
+      List<Matrix4f> worldViewProjections = new ArrayList<>();
+      List<List<TestEntity>> overlapResults = new ArrayList<>();
+      List<List<TestEntity>> rayResults = new ArrayList<>();
+      List<List<TestEntity>> frustumResults = new ArrayList<>();
+      for (int i = 0; i < queryCount; i++) {
+         float offset = i * 0.5f;
+         overlapQueries.add(new AABBf(offset, offset, 0.0f, offset + 10.0f, offset + 5.0f, 0.0f));
+         rays.add(new Rayf(0.0f, offset, 0.0f, 1.0f, 0.25f, 0.0f));
+         worldViewProjections.add(new Matrix4f().ortho(offset, offset + 20.0f, 0.0f, 30.0f, -1.0f, 1.0f));
+         overlapResults.add(new ArrayList<>());
+         rayResults.add(new ArrayList<>());
+         frustumResults.add(new ArrayList<>());
+      }
+      ExecutorService executor = Executors.newFixedThreadPool(4);
+
+      // When
+      try {
+         tree.detectOverlaps(overlapQueries, overlapResults, executor);
+         tree.detectRayIntersections(rays, rayResults, executor);
+         tree.detectInFrustums(worldViewProjections, frustumResults, executor);
+      } finally {
+         executor.shutdown();
+      }
+
+      // Then
+      List<TestEntity> expected = new ArrayList<>();
+      for (int i = 0; i < queryCount; i++) {
+         tree.detectOverlaps(overlapQueries.get(i), expected);
+         assertEquals(expected, overlapResults.get(i));
+         tree.detectRayIntersection(rays.get(i), expected);
+         assertEquals(expected, rayResults.get(i));
+         tree.detectInFrustum(worldViewProjections.get(i), expected);
+         assertEquals(expected, frustumResults.get(i));
+      }
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void shouldRequireAResultListForEveryBatchedQuery() {
+      // Given
+      AABBTree<TestEntity> tree = givenTree();
+      List<AABBf> queries = Arrays.asList(new AABBf(), new AABBf());
+      List<List<TestEntity>> results = new ArrayList<>();
+      results.add(new ArrayList<>());
+
+      // When
+      tree.detectOverlaps(queries, results, null);
+   }
+
+   @Test
+   public void shouldRestoreTheExactStateOfTheTree() throws IOException {
+      // Given
+      AABBTree<TestEntity> tree = new AABBTree<>(new AreaAABBHeuristicFunction<>(), 0.5f);
+      tree.setMoveTrackingEnabled(true);
+      Map<Long, TestEntity> entitiesByID = new HashMap<>();
+      List<TestEntity> entities = TestEntities.givenRandomEntities(100);
+      for (TestEntity entity : entities) {
+         entitiesByID.put(entity.getID(), entity);
+         tree.add(entity);
+      }
+      for (int i = 0; i < 30; i++) {
+         tree.remove(entities.get(i * 3));
+      }
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+      // When
+      tree.writeTo(output);
+      AABBTree<TestEntity> restoredTree = givenTree();
+      restoredTree.add(new TestEntity(1000, 0.0f, 0.0f, 1.0f, 1.0f));
+      restoredTree.readFrom(new ByteArrayInputStream(output.toByteArray()), entitiesByID::get);
+      TestEntity addedEntity = new TestEntity(1001, 50.0f, 50.0f, 2.0f, 2.0f);
+      tree.add(addedEntity);
+      restoredTree.add(addedEntity);
+
+      // Then
+      assertEquals(tree.size(), restoredTree.size());
+      assertEquals(tree.getRoot(), restoredTree.getRoot());
+      assertTrue(restoredTree.isMoveTrackingEnabled());
+      assertEquals(tree.getFreeNodes().size(), restoredTree.getFreeNodes().size());
+      for (int i = 0; i < tree.getFreeNodes().size(); i++) {
+         assertEquals(tree.getFreeNodes().get(i), restoredTree.getFreeNodes().get(i));
+      }
+      assertEquals(tree.getNodes().size(), restoredTree.getNodes().size());
+      for (int i = 0; i < tree.getNodes().size(); i++) {
+         AABBTreeNode<TestEntity> node = tree.getNodes().get(i);
+         AABBTreeNode<TestEntity> restoredNode = restoredTree.getNodes().get(i);
+         assertEquals(node.getParent(), restoredNode.getParent());
+         assertEquals(node.getLeftChild(), restoredNode.getLeftChild());
+         assertEquals(node.getRightChild(), restoredNode.getRightChild());
+         assertEquals(node.getHeight(), restoredNode.getHeight());
+         assertEquals(node.getAABB(), restoredNode.getAABB());
+         assertSame(node.getData(), restoredNode.getData());
+      }
+      for (int i = 0; i < 30; i++) {
+         assertFalse(restoredTree.contains(entities.get(i * 3)));
+         assertTrue(restoredTree.contains(entities.get(i * 3 + 1)));
+      }
+      List<CollisionPair<TestEntity>> pairs = new ArrayList<>();
+      List<CollisionPair<TestEntity>> restoredPairs = new ArrayList<>();
+      tree.detectMovedCollisionPairs(pairs);
+      restoredTree.detectMovedCollisionPairs(restoredPairs);
+      assertEquals(pairs, restoredPairs);
+   }
+
+   @Test
+   public void shouldKeepTheTreeUnchangedWhenTheStreamIsInvalid() {
+      // Given
+      AABBTree<TestEntity> tree = givenTree();
+      TestEntity entity = new TestEntity(1, 0.0f, 0.0f, 1.0f, 1.0f);
+      tree.add(entity);
+
+      // When
+      try {
+         tree.readFrom(new ByteArrayInputStream(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }), id -> null);
+         fail("An invalid stream was accepted");
+      } catch (IOException e) {
+         // Then
+         assertTrue(e instanceof StreamCorruptedException);
+      }
+      assertEquals(1, tree.size());
+      assertTrue(tree.contains(entity));
+   }
+
+   @Test
+   public void shouldRejectAStreamWithAnInvalidRoot() throws IOException {
+      // Given
+      AABBTree<TestEntity> tree = givenTree();
+      Map<Long, TestEntity> entities = new HashMap<>();
+      for (int i = 0; i < 3; i++) {
+         TestEntity entity = new TestEntity(i, i * 20.0f, 0.0f, 10.0f, 10.0f);
+         tree.add(entity);
+         entities.put(entity.getID(), entity);
+      }
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      tree.writeTo(output);
+      AABBTree<TestEntity> readTree = givenTree();
+      TestEntity readEntity = new TestEntity(10, 0.0f, 0.0f, 1.0f, 1.0f);
+      readTree.add(readEntity);
+
+      // The root follows the magic, the version, the margin and the move tracking flag. Both an index outside of the
+      // tree and one of a leaf, which has a parent, have to be rejected.
+      int rootOffset = 4 + 4 + 4 + 1;
+      int leafIndex = tree.getNodes().get(tree.getRoot()).getLeftChild();
+      for (int corruptRoot : new int[] { 9999, -5, leafIndex }) {
+         byte[] bytes = output.toByteArray();
+         bytes[rootOffset] = (byte) (corruptRoot >>> 24);
+         bytes[rootOffset + 1] = (byte) (corruptRoot >>> 16);
+         bytes[rootOffset + 2] = (byte) (corruptRoot >>> 8);
+         bytes[rootOffset + 3] = (byte) corruptRoot;
+
+         // When
+         try {
+            readTree.readFrom(new ByteArrayInputStream(bytes), entities::get);
+            fail("A stream with the root " + corruptRoot + " was accepted");
+         } catch (StreamCorruptedException e) {
+            // Then
+            assertEquals(1, readTree.size());
+            assertTrue(readTree.contains(readEntity));
+            assertValidTree(readTree);
+         }
+      }
+   }
+
+   @Test
+   public void shouldRejectAStreamWithAnInconsistentMoveBuffer() throws IOException {
+      // Given
+      AABBTree<TestEntity> tree = givenTree();
+      tree.setMoveTrackingEnabled(true);
+      Map<Long, TestEntity> entities = new HashMap<>();
+      for (int i = 0; i < 3; i++) {
+         TestEntity entity = new TestEntity(i, i * 5.0f, 0.0f, 10.0f, 10.0f);
+         tree.add(entity);
+         entities.put(entity.getID(), entity);
+      }
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      tree.writeTo(output);
+      byte[] bytes = output.toByteArray();
+      AABBTree<TestEntity> readTree = givenTree();
+      TestEntity readEntity = new TestEntity(10, 0.0f, 0.0f, 1.0f, 1.0f);
+      readTree.add(readEntity);
+
+      // The stream ends with the three moved leaves, preceded by their count.
+      List<byte[]> corruptStreams = new ArrayList<>();
+      byte[] duplicate = bytes.clone();
+      System.arraycopy(bytes, bytes.length - 8, duplicate, bytes.length - 4, 4);
+      corruptStreams.add(duplicate);
+      byte[] missing = Arrays.copyOf(bytes, bytes.length - 4);
+      missing[missing.length - 9] = 2;
+      corruptStreams.add(missing);
+      byte[] untracked = bytes.clone();
+      untracked[12] = 0;
+      corruptStreams.add(untracked);
+
+      for (byte[] corruptStream : corruptStreams) {
+         // When
+         try {
+            readTree.readFrom(new ByteArrayInputStream(corruptStream), entities::get);
+            fail("A stream with an inconsistent move buffer was accepted");
+         } catch (StreamCorruptedException e) {
+            // Then
+            assertEquals(1, readTree.size());
+            assertTrue(readTree.contains(readEntity));
+         }
+      }
+      readTree.readFrom(new ByteArrayInputStream(bytes), entities::get);
+      List<CollisionPair<TestEntity>> pairs = new ArrayList<>();
+      List<CollisionPair<TestEntity>> readPairs = new ArrayList<>();
+      tree.detectMovedCollisionPairs(pairs);
+      readTree.detectMovedCollisionPairs(readPairs);
+      assertFalse(pairs.isEmpty());
+      assertEquals(pairs, readPairs);
+   }
+
+   @Test
+   public void shouldReuseTheMostRecentlyFreedNodeFirst() {
+      // Given
+      AABBTree<TestEntity> tree = givenTree();
+      TestEntity entity1 = new TestEntity(1, 0.0f, 0.0f, 10.0f, 10.0f);
+      TestEntity entity2 = new TestEntity(2, 20.0f, 0.0f, 10.0f, 10.0f);
+      TestEntity entity3 = new TestEntity(3, 40.0f, 0.0f, 10.0f, 10.0f);
+      tree.add(entity1);
+      tree.add(entity2);
+      tree.add(entity3);
+      tree.remove(entity1);
+      tree.remove(entity3);
+      int lastFreedNode = tree.getFreeNodes().peek();
+
+      // When
+      tree.add(new TestEntity(4, 60.0f, 0.0f, 10.0f, 10.0f));
+
+      // Then
+      assertEquals(4L, tree.getNodes().get(lastFreedNode).getData().getID());
+      assertEquals(2, tree.getFreeNodes().size());
+   }
+
+   @Test
+   public void shouldCompactTheNodesInDepthFirstOrder() {
+      // Given
+      AABBTree<TestEntity> tree = givenTree();
+      tree.setMoveTrackingEnabled(true);
+      List<TestEntity> entities = TestEntities.givenRandomEntities(300);
+      for (TestEntity entity : entities) {
+         tree.add(entity);
+      }
+      for (int i = 0; i < 250; i++) {
+         tree.remove(entities.get(i));
+      }
+      tree.detectMovedCollisionPairs(new ArrayList<>());
+      entities.get(260).setPosition(entities.get(270).getAABB(null).minX, entities.get(270).getAABB(null).minY);
+      tree.update(entities.get(260));
+      AABBf overlapWith = new AABBf(10.0f, 10.0f, 0.0f, 90.0f, 90.0f, 0.0f);
+      List<TestEntity> expected = new ArrayList<>();
+      tree.detectOverlaps(overlapWith, expected);
+
+      // When
+      tree.compact();
+
+      // Then
+      assertEquals(99, tree.getNodes().size());
+      assertTrue(tree.getFreeNodes().isEmpty());
+      assertEquals(0, tree.getRoot());
+      assertValidTree(tree);
+      for (int i = 0; i < tree.getNodes().size(); i++) {
+         AABBTreeNode<TestEntity> node = tree.getNodes().get(i);
+         if (!node.isLeaf()) {
+            assertEquals(i + 1, node.getLeftChild());
+         }
+      }
+      List<TestEntity> result = new ArrayList<>();
+      tree.detectOverlaps(overlapWith, result);
+      assertFalse(expected.isEmpty());
+      TestEntities.assertSameEntities(expected, result);
+      List<CollisionPair<TestEntity>> movedPairs = new ArrayList<>();
+      tree.detectMovedCollisionPairs(movedPairs);
+      assertTrue(movedPairs.contains(new CollisionPair<>(entities.get(260), entities.get(270))) ||
+                 movedPairs.contains(new CollisionPair<>(entities.get(270), entities.get(260))));
+      for (int i = 250; i < 300; i++) {
+         tree.remove(entities.get(i));
+      }
+      assertEquals(0, tree.size());
+      assertValidTree(tree);
+   }
+
+   @Test
+   public void shouldDropMovesOfFreedNodesWhenCompacting() {
+      // Given
+      AABBTree<TestEntity> tree = givenTree();
+      AABBTree<TestEntity> compactedTree = givenTree();
+      tree.setMoveTrackingEnabled(true);
+      compactedTree.setMoveTrackingEnabled(true);
+      List<TestEntity> entities = TestEntities.givenRandomEntities(200);
+      for (TestEntity entity : entities) {
+         tree.add(entity);
+         compactedTree.add(entity);
+      }
+      for (int i = 0; i < 150; i++) {
+         tree.remove(entities.get(i));
+         compactedTree.remove(entities.get(i));
+      }
+
+      // When
+      compactedTree.compact();
+      List<CollisionPair<TestEntity>> expected = new ArrayList<>();
+      List<CollisionPair<TestEntity>> result = new ArrayList<>();
+      tree.detectMovedCollisionPairs(expected);
+      compactedTree.detectMovedCollisionPairs(result);
+
+      // Then
+      assertFalse(expected.isEmpty());
+      assertEquals(new HashSet<>(expected), new HashSet<>(result));
+      assertEquals(expected.size(), result.size());
+   }
+
+   private List<TestEntity> runConcurrentQuery(AABBTree<TestEntity> tree, FlatAABBTree<TestEntity> flatTree, int query) {
+      List<TestEntity> result = new ArrayList<>();
+      List<TestEntity> flatResult = new ArrayList<>();
+      List<TestEntity> merged = new ArrayList<>();
+      float offset = query * 1.5f;
+      Rayf ray = new Rayf(0.0f, offset, 0.0f, 1.0f, 0.5f, 0.0f);
+      Matrix4f worldViewProjection = new Matrix4f().ortho(offset, offset + 20.0f, offset, offset + 30.0f, -1.0f, 1.0f);
+      tree.detectRayIntersection(ray, result);
+      merged.addAll(result);
+      tree.detectInFrustum(worldViewProjection, result);
+      merged.addAll(result);
+      flatTree.detectRayIntersection(ray, flatResult);
+      merged.addAll(flatResult);
+      flatTree.detectInFrustum(worldViewProjection, flatResult);
+      merged.addAll(flatResult);
+      return merged;
+   }
+
+   private void runQueries(AABBTree<TestEntity> tree, AABBf overlapWith, Rayf ray, Matrix4f worldViewProjection,
+                           Vector3f nearestTo, RayCastHit<TestEntity> hit, List<TestEntity> result, int iterations) {
+      for (int i = 0; i < iterations; i++) {
+         tree.detectOverlaps(overlapWith, result);
+         tree.detectRayIntersection(ray, result);
+         tree.detectInFrustum(worldViewProjection, result);
+         tree.countOverlaps(overlapWith);
+         tree.anyOverlap(overlapWith);
+         tree.nearest(nearestTo);
+         tree.rayCast(ray, Float.POSITIVE_INFINITY, hit);
+      }
+   }
+
+   private com.sun.management.ThreadMXBean givenAllocationBean() {
+      java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+      Assume.assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+      com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadMXBean;
+      Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported() && allocationBean.isThreadAllocatedMemoryEnabled());
+      return allocationBean;
+   }
+
    private AABBTree<TestEntity> givenTree() {
       return new AABBTree<>();
    }
@@ -0,0 +1,223 @@
+package pl.pateman.dynamicaabbtree;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CollisionPairManagerTest
+{
+   @Test
+   public void shouldReportPairsThatExistedBeforeTheManager() {
+      // Given
+      AABBTree<TestEntity> tree = new AABBTree<>();
+      TestEntity entity1 = new TestEntity(1, 0.0f, 0.0f, 10.0f, 10.0f);
+      TestEntity entity2 = new TestEntity(2, -5.0f, 0.0f, 10.0f, 10.0f);
+      tree.add(entity1);
+      tree.add(entity2);
+      CollisionPairManager<TestEntity> manager = new CollisionPairManager<>(tree);
+      RecordingListener listener = new RecordingListener();
+
+      // When
+      manager.updatePairs(listener);
+
+      // Then
+      assertEquals(1, listener.begun.size());
+      assertEquals(new CollisionPair<>(entity1, entity2), listener.begun.get(0));
+      assertTrue(listener.ended.isEmpty());
+      assertEquals(1, manager.getPairCount());
+   }
+
+   @Test
+   public void shouldReportOnlyChangedPairs() {
+      // Given
+      AABBTree<TestEntity> tree = new AABBTree<>();
+      CollisionPairManager<TestEntity> manager = new CollisionPairManager<>(tree);
+      TestEntity entity1 = new TestEntity(1, 0.0f, 0.0f, 10.0f, 10.0f);
+      TestEntity entity2 = new TestEntity(2, -5.0f, 0.0f, 10.0f, 10.0f);
+      TestEntity entity3 = new TestEntity(3, 30.0f, 0.0f, 10.0f, 10.0f);
+      tree.add(entity1);
+      tree.add(entity2);
+      tree.add(entity3);
+      manager.updatePairs(new RecordingListener());
+      RecordingListener listener = new RecordingListener();
+
+      // When
+      entity3.setPosition(5.0f, 0.0f);
+      tree.update(entity3);
+      entity2.setPosition(-50.0f, 0.0f);
+      tree.update(entity2);
+      manager.updatePairs(listener);
+
+      // Then
+      assertEquals(1, listener.begun.size());
+      assertEquals(new CollisionPair<>(entity1, entity3), listener.begun.get(0));
+      assertEquals(1, listener.ended.size());
+      assertEquals(new CollisionPair<>(entity1, entity2), listener.ended.get(0));
+      assertEquals(1, manager.getPairCount());
+   }
+
+   @Test
+   public void shouldReportNothingWhenNothingMoved() {
+      // Given
+      AABBTree<TestEntity> tree = new AABBTree<>();
+      CollisionPairManager<TestEntity> manager = new CollisionPairManager<>(tree);
+      TestEntity entity1 = new TestEntity(1, 0.0f, 0.0f, 10.0f, 10.0f);
+      TestEntity entity2 = new TestEntity(2, -5.0f, 0.0f, 10.0f, 10.0f);
+      tree.add(entity1);
+      tree.add(entity2);
+      manager.updatePairs(new RecordingListener());
+      RecordingListener listener = new RecordingListener();
+
+      // When
+      entity1.setPosition(0.1f, 0.0f);
+      tree.update(entity1);
+      manager.updatePairs(listener);
+
+      // Then
+      assertTrue(listener.begun.isEmpty());
+      assertTrue(listener.ended.isEmpty());
+      assertEquals(1, manager.getPairCount());
+   }
+
+   @Test
+   public void shouldEndPairsOfRemovedObjects() {
+      // Given
+      AABBTree<TestEntity> tree = new AABBTree<>();
+      CollisionPairManager<TestEntity> manager = new CollisionPairManager<>(tree);
+      TestEntity entity1 = new TestEntity(1, 0.0f, 0.0f, 10.0f, 10.0f);
+      TestEntity entity2 = new TestEntity(2, -5.0f, 0.0f, 10.0f, 10.0f);
+      tree.add(entity1);
+      tree.add(entity2);
+      manager.updatePairs(new RecordingListener());
+      RecordingListener listener = new RecordingListener();
+
+      // When
+      tree.remove(entity2);
+      manager.updatePairs(listener);
+
+      // Then
+      assertTrue(listener.begun.isEmpty());
+      assertEquals(1, listener.ended.size());
+      assertEquals(0, manager.getPairCount());
+      assertFalse(manager.isOverlapping(entity1, entity2));
+   }
+
+   @Test
+   public void shouldReportTheSamePairInstanceOnBeginAndEnd() {
+      // Given
+      AABBTree<TestEntity> tree = new AABBTree<>();
+      CollisionPairManager<TestEntity> manager = new CollisionPairManager<>(tree);
+      TestEntity entity1 = new TestEntity(1, 0.0f, 0.0f, 10.0f, 10.0f);
+      TestEntity entity2 = new TestEntity(2, -5.0f, 0.0f, 10.0f, 10.0f);
+      tree.add(entity1);
+      tree.add(entity2);
+      RecordingListener listener = new RecordingListener();
+      manager.updatePairs(listener);
+
+      // When
+      entity1.setPosition(100.0f, 0.0f);
+      tree.update(entity1);
+      manager.updatePairs(listener);
+
+      // Then
+      assertEquals(1, listener.begun.size());
+      assertEquals(1, listener.ended.size());
+      assertSame(listener.begun.get(0), listener.ended.get(0));
+   }
+
+   @Test
+   public void shouldDetectMovedPairsOnlyOnce() {
+      // Given
+      AABBTree<TestEntity> tree = new AABBTree<>();
+      tree.setMoveTrackingEnabled(true);
+      TestEntity entity1 = new TestEntity(1, 0.0f, 0.0f, 10.0f, 10.0f);
+      TestEntity entity2 = new TestEntity(2, -5.0f, 0.0f, 10.0f, 10.0f);
+      TestEntity entity3 = new TestEntity(3, 5.0f, 0.0f, 10.0f, 10.0f);
+      tree.add(entity1);
+      tree.add(entity2);
+      tree.add(entity3);
+
+      // When
+      List<CollisionPair<TestEntity>> pairs = new ArrayList<>();
+      List<CollisionPair<TestEntity>> pairsAfterwards = new ArrayList<>();
+      tree.detectMovedCollisionPairs(pairs);
+      tree.detectMovedCollisionPairs(pairsAfterwards);
+
+      // Then
+      assertEquals(3, pairs.size());
+      assertTrue(pairsAfterwards.isEmpty());
+   }
+
+   @Test
+   public void shouldQueueAReusedNodeOnlyOnce() {
+      // Given
+      AABBTree<TestEntity> tree = new AABBTree<>();
+      tree.setMoveTrackingEnabled(true);
+      TestEntity entity1 = new TestEntity(1, 0.0f, 0.0f, 10.0f, 10.0f);
+      TestEntity entity2 = new TestEntity(2, 100.0f, 0.0f, 10.0f, 10.0f);
+      tree.add(entity1);
+      tree.add(entity2);
+      tree.detectMovedCollisionPairs(new ArrayList<>());
+
+      // When
+      entity2.setPosition(50.0f, 0.0f);
+      tree.update(entity2);
+      entity2.setPosition(5.0f, 0.0f);
+      tree.update(entity2);
+      List<CollisionPair<TestEntity>> pairs = new ArrayList<>();
+      tree.detectMovedCollisionPairs(pairs);
+
+      // Then
+      assertEquals(2, tree.getReinsertedUpdateCount());
+      assertEquals(1, pairs.size());
+   }
+
+   @Test
+   public void shouldNotReportPairsTwiceAfterAnObjectIsReplaced() {
+      // Given
+      AABBTree<TestEntity> tree = new AABBTree<>();
+      tree.setMoveTrackingEnabled(true);
+      TestEntity entity1 = new TestEntity(1, 0.0f, 0.0f, 10.0f, 10.0f);
+      TestEntity entity2 = new TestEntity(2, -5.0f, 0.0f, 10.0f, 10.0f);
+      tree.add(entity1);
+      tree.add(entity2);
+      tree.detectMovedCollisionPairs(new ArrayList<>());
+
+      // When
+      TestEntity removedEntity = new TestEntity(3, 5.0f, 0.0f, 10.0f, 10.0f);
+      tree.add(removedEntity);
+      tree.remove(removedEntity);
+      TestEntity addedEntity = new TestEntity(4, 5.0f, 0.0f, 10.0f, 10.0f);
+      tree.add(addedEntity);
+      List<CollisionPair<TestEntity>> pairs = new ArrayList<>();
+      tree.detectMovedCollisionPairs(pairs);
+
+      // Then
+      assertEquals(2, pairs.size());
+      assertTrue(pairs.contains(new CollisionPair<>(addedEntity, entity1)) ||
+                 pairs.contains(new CollisionPair<>(entity1, addedEntity)));
+      assertTrue(pairs.contains(new CollisionPair<>(addedEntity, entity2)) ||
+                 pairs.contains(new CollisionPair<>(entity2, addedEntity)));
+   }
+
+   private static final class RecordingListener implements CollisionPairListener<TestEntity>
+   {
+      private final List<CollisionPair<TestEntity>> begun = new ArrayList<>();
+      private final List<CollisionPair<TestEntity>> ended = new ArrayList<>();
+
+      @Override
+      public void beginOverlap(CollisionPair<TestEntity> pair)
+      {
+         begun.add(pair);
+      }
+
+      @Override
+      public void endOverlap(CollisionPair<TestEntity> pair)
+      {
+         ended.add(pair);
+      }
+   }
+}
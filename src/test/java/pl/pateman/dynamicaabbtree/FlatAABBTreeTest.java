@@ -0,0 +1,34 @@
+package pl.pateman.dynamicaabbtree;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static pl.pateman.dynamicaabbtree.AABBTreeNode.INVALID_NODE_INDEX;
+import static pl.pateman.dynamicaabbtree.TestEntities.givenRandomTree;
+
+public class FlatAABBTreeTest
+{
+   @Test
+   public void shouldStoreNodesInDepthFirstOrder() {
+      // Given
+      AABBTree<TestEntity> tree = givenRandomTree(50);
+
+      // When
+      FlatAABBTree<TestEntity> flatTree = tree.toFlatTree();
+
+      // Then
+      assertEquals(99, flatTree.getNodeCount());
+      assertEquals(INVALID_NODE_INDEX, flatTree.getParents()[0]);
+      assertEquals(tree.getNodes().get(tree.getRoot()).getHeight(), flatTree.getHeights()[0]);
+      for (int i = 0; i < flatTree.getNodeCount(); i++) {
+         int left = flatTree.getLeftChildren()[i];
+         if (left == INVALID_NODE_INDEX) {
+            assertNotNull(flatTree.getData()[i]);
+            continue;
+         }
+         assertEquals(i + 1, left);
+         assertEquals(i, flatTree.getParents()[left]);
+         assertEquals(i, flatTree.getParents()[flatTree.getRightChildren()[i]]);
+      }
+   }
+}
@@ -0,0 +1,36 @@
+package pl.pateman.dynamicaabbtree;
+
+import org.junit.Test;
+
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FloatIntHeapTest
+{
+   @Test
+   public void shouldPopValuesInOrderOfTheirKeys() {
+      // Given
+      FloatIntHeap heap = new FloatIntHeap();
+      PriorityQueue<Float> expected = new PriorityQueue<>();
+      Random random = new Random(42L);
+
+      // When & Then
+      for (int i = 0; i < 20000; i++) {
+         if (expected.isEmpty() || random.nextInt(3) > 0) {
+            float key = random.nextFloat() * 100.0f;
+            expected.add(key);
+            heap.push(key, Float.floatToIntBits(key));
+         } else {
+            assertEquals(expected.peek(), heap.peekKey(), 0.0f);
+            assertEquals(Float.floatToIntBits(expected.poll()), heap.pop());
+         }
+         assertEquals(expected.size(), heap.size());
+      }
+      while (!expected.isEmpty()) {
+         assertEquals(Float.floatToIntBits(expected.poll()), heap.pop());
+      }
+      assertTrue(heap.isEmpty());
+   }
+}
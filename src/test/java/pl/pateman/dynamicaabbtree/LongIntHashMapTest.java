@@ -0,0 +1,54 @@
+package pl.pateman.dynamicaabbtree;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LongIntHashMapTest
+{
+   @Test
+   public void shouldReturnNoValueForMissingKeys() {
+      // Given
+      LongIntHashMap map = new LongIntHashMap();
+
+      // When
+      map.put(1L, 10);
+
+      // Then
+      assertEquals(10, map.get(1L));
+      assertEquals(LongIntHashMap.NO_VALUE, map.get(2L));
+      assertFalse(map.containsKey(2L));
+   }
+
+   @Test
+   public void shouldBehaveLikeAHashMap() {
+      // Given
+      LongIntHashMap map = new LongIntHashMap();
+      Map<Long, Integer> expected = new HashMap<>();
+      Random random = new Random(42L);
+
+      // When
+      for (int i = 0; i < 20000; i++) {
+         long key = random.nextInt(500) * 0x100000000L;
+         if (random.nextBoolean()) {
+            int value = random.nextInt(1000);
+            Integer previous = expected.put(key, value);
+            assertEquals(previous == null ? LongIntHashMap.NO_VALUE : previous, map.put(key, value));
+         } else {
+            Integer previous = expected.remove(key);
+            assertEquals(previous == null ? LongIntHashMap.NO_VALUE : previous, map.remove(key));
+         }
+      }
+
+      // Then
+      assertEquals(expected.size(), map.size());
+      for (long key = 0; key < 500; key++) {
+         Integer value = expected.get(key * 0x100000000L);
+         assertEquals(value == null ? LongIntHashMap.NO_VALUE : value, map.get(key * 0x100000000L));
+      }
+   }
+}
@@ -0,0 +1,88 @@
+package pl.pateman.dynamicaabbtree;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LongPairHashMapTest
+{
+   @Test
+   public void shouldIgnoreTheOrderOfKeys() {
+      // Given
+      LongPairHashMap<String> map = new LongPairHashMap<>();
+
+      // When
+      map.put(7L, 3L, "pair");
+
+      // Then
+      assertEquals("pair", map.get(3L, 7L));
+      assertEquals("pair", map.get(7L, 3L));
+      assertEquals(1, map.size());
+   }
+
+   @Test
+   public void shouldDistinguishPairsWithLargeIDs() {
+      // Given
+      LongPairHashMap<String> map = new LongPairHashMap<>();
+      long largeID = 1L << 40;
+
+      // When
+      map.put(largeID, 1L, "first");
+      map.put(largeID + 1L, 1L, "second");
+
+      // Then
+      assertEquals("first", map.get(1L, largeID));
+      assertEquals("second", map.get(1L, largeID + 1L));
+      assertNull(map.get(largeID, largeID + 1L));
+   }
+
+   @Test
+   public void shouldKeepEntriesAfterRemovalsAndGrowth() {
+      // Given
+      LongPairHashMap<Long> map = new LongPairHashMap<>();
+      for (long i = 0; i < 1000; i++) {
+         map.put(i, i + 1, i);
+      }
+
+      // When
+      for (long i = 0; i < 1000; i += 2) {
+         assertEquals(Long.valueOf(i), map.remove(i + 1, i));
+      }
+      for (long i = 1000; i < 2000; i++) {
+         map.put(i, i + 1, i);
+      }
+
+      // Then
+      assertEquals(1500, map.size());
+      for (long i = 0; i < 2000; i++) {
+         if (i < 1000 && i % 2 == 0) {
+            assertFalse(map.containsKey(i, i + 1));
+         } else {
+            assertEquals(Long.valueOf(i), map.get(i, i + 1));
+         }
+      }
+   }
+
+   @Test
+   public void shouldRemoveEntriesWhileIteratingOverSlots() {
+      // Given
+      LongPairHashMap<Long> map = new LongPairHashMap<>();
+      for (long i = 0; i < 100; i++) {
+         map.put(i, -i, i);
+      }
+
+      // When
+      int visited = 0;
+      for (int slot = 0; slot < map.capacity(); slot++) {
+         Long value = map.valueAt(slot);
+         if (value != null) {
+            visited++;
+            map.removeAt(slot);
+         }
+      }
+
+      // Then
+      assertEquals(100, visited);
+      assertEquals(0, map.size());
+   }
+}
@@ -0,0 +1,166 @@
+package pl.pateman.dynamicaabbtree;
+
+import org.joml.AABBf;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+import static pl.pateman.dynamicaabbtree.TestEntities.assertSameEntities;
+import static pl.pateman.dynamicaabbtree.TestEntities.givenRandomTree;
+
+public class MappedAABBTreeTest
+{
+   @Rule
+   public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+   @Test
+   public void shouldMapAWrittenFile() throws IOException {
+      // Given
+      Map<Long, TestEntity> entitiesByID = new HashMap<>();
+      AABBTree<TestEntity> tree = givenRandomTree(500, entitiesByID);
+      Path path = temporaryFolder.newFile().toPath();
+      AABBf overlapWith = new AABBf(10.0f, 10.0f, 0.0f, 40.0f, 30.0f, 0.0f);
+
+      // When
+      MappedAABBTree.write(tree, path);
+      MappedAABBTree<TestEntity> mappedTree = MappedAABBTree.map(path, entitiesByID::get);
+      List<TestEntity> expected = new ArrayList<>();
+      List<TestEntity> result = new ArrayList<>();
+      tree.detectOverlaps(overlapWith, expected);
+      mappedTree.detectOverlaps(overlapWith, result);
+
+      // Then
+      assertEquals(500, mappedTree.size());
+      assertEquals(999, mappedTree.getNodeCount());
+      Set<Long> ids = new HashSet<>();
+      for (int i = 0; i < mappedTree.size(); i++) {
+         ids.add(mappedTree.getID(i));
+      }
+      assertEquals(entitiesByID.keySet(), ids);
+      assertFalse(expected.isEmpty());
+      assertSameEntities(expected, result);
+   }
+
+   @Test
+   public void shouldSkipObjectsMissingFromTheLookup() throws IOException {
+      // Given
+      AABBTree<TestEntity> tree = new AABBTree<>();
+      TestEntity kept = new TestEntity(1, 0.0f, 0.0f, 2.0f, 2.0f);
+      tree.add(kept);
+      tree.add(new TestEntity(2, 1.0f, 1.0f, 2.0f, 2.0f));
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      MappedAABBTree.write(tree, Channels.newChannel(output));
+
+      // When
+      MappedAABBTree<TestEntity> mappedTree = new MappedAABBTree<>(ByteBuffer.wrap(output.toByteArray()),
+                                                                   id -> id == 1 ? kept : null);
+      List<TestEntity> result = new ArrayList<>();
+      mappedTree.detectOverlaps(new AABBf(0.0f, 0.0f, 0.0f, 3.0f, 3.0f, 0.0f), result);
+
+      // Then
+      assertEquals(2, mappedTree.size());
+      assertEquals(1, result.size());
+      assertSame(kept, result.get(0));
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void shouldRejectABufferWithoutATree() {
+      // Given
+      ByteBuffer buffer = ByteBuffer.allocate(64);
+
+      // When
+      new MappedAABBTree<TestEntity>(buffer, id -> null);
+   }
+
+   @Test
+   public void shouldRejectCorruptHeaders() throws IOException {
+      // Given
+      byte[] bytes = givenMappedTree();
+
+      // When
+      List<byte[]> corruptBuffers = new ArrayList<>();
+      corruptBuffers.add(Arrays.copyOf(bytes, bytes.length - 1));
+      corruptBuffers.add(withInt(bytes, 8, 4));
+      // The counts match, but the nodes would end far beyond the end of the buffer.
+      corruptBuffers.add(withInt(withInt(bytes, 12, 0x40000000), 8, Integer.MAX_VALUE));
+
+      // Then
+      for (byte[] corruptBuffer : corruptBuffers) {
+         try {
+            new MappedAABBTree<TestEntity>(ByteBuffer.wrap(corruptBuffer), id -> null);
+            fail("A corrupt buffer was accepted");
+         } catch (IllegalArgumentException e) {
+            // Expected.
+         }
+      }
+      assertEquals(3, new MappedAABBTree<TestEntity>(ByteBuffer.wrap(bytes), id -> null).size());
+   }
+
+   @Test
+   public void shouldRejectCorruptLinks() throws IOException {
+      // Given
+      byte[] bytes = givenMappedTree();
+      int rootLinkOffset = MappedAABBTree.HEADER_SIZE + 24;
+      int leafLinkOffset = rootLinkOffset + MappedAABBTree.NODE_SIZE;
+      while (ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getInt(leafLinkOffset) >= 0) {
+         leafLinkOffset += MappedAABBTree.NODE_SIZE;
+      }
+      AABBf overlapWith = new AABBf(-100.0f, -100.0f, -100.0f, 100.0f, 100.0f, 100.0f);
+
+      // When
+      List<byte[]> corruptBuffers = new ArrayList<>();
+      corruptBuffers.add(withInt(bytes, rootLinkOffset, 99));
+      corruptBuffers.add(withInt(bytes, rootLinkOffset, 0));
+      corruptBuffers.add(withInt(bytes, rootLinkOffset, 1));
+      corruptBuffers.add(withInt(bytes, leafLinkOffset, ~5));
+
+      // Then
+      for (byte[] corruptBuffer : corruptBuffers) {
+         MappedAABBTree<TestEntity> mappedTree = new MappedAABBTree<>(ByteBuffer.wrap(corruptBuffer), id -> null);
+         try {
+            mappedTree.validate();
+            fail("A corrupt tree was validated");
+         } catch (IllegalArgumentException e) {
+            // Expected.
+         }
+         try {
+            mappedTree.detectOverlaps(overlapWith, new ArrayList<>());
+            fail("A corrupt link was followed");
+         } catch (IllegalStateException e) {
+            // Expected.
+         }
+      }
+      new MappedAABBTree<TestEntity>(ByteBuffer.wrap(bytes), id -> null).validate();
+   }
+
+   private static byte[] givenMappedTree() throws IOException {
+      AABBTree<TestEntity> tree = new AABBTree<>();
+      for (int i = 0; i < 3; i++) {
+         tree.add(new TestEntity(i, i * 10.0f, 0.0f, 2.0f, 2.0f));
+      }
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      MappedAABBTree.write(tree, Channels.newChannel(output));
+      return output.toByteArray();
+   }
+
+   private static byte[] withInt(byte[] bytes, int offset, int value) {
+      byte[] copy = bytes.clone();
+      ByteBuffer.wrap(copy).order(ByteOrder.LITTLE_ENDIAN).putInt(offset, value);
+      return copy;
+   }
+}
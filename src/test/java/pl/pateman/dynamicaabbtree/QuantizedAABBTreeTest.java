@@ -0,0 +1,74 @@
+package pl.pateman.dynamicaabbtree;
+
+import org.joml.AABBf;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static pl.pateman.dynamicaabbtree.TestEntities.givenRandomTree;
+
+public class QuantizedAABBTreeTest
+{
+   @Test
+   public void shouldRoundBoundsOutwardsByAtMostOneStep() {
+      // Given
+      AABBTree<TestEntity> tree = givenRandomTree(500);
+      FlatAABBTree<TestEntity> flatTree = tree.toFlatTree();
+
+      // When
+      QuantizedAABBTree<TestEntity> quantizedTree = tree.toQuantizedTree();
+      float[] decodedBounds = new float[quantizedTree.getNodeCount() * QuantizedAABBTree.BOUNDS_STRIDE];
+      quantizedTree.decodeBounds(decodedBounds);
+
+      // Then
+      float[] bounds = flatTree.getBounds();
+      float step = 110.0f / QuantizedAABBTree.QUANTIZATION_STEPS;
+      assertEquals(flatTree.getNodeCount(), quantizedTree.getNodeCount());
+      for (int i = 0; i < bounds.length; i++) {
+         if (i % 6 < 3) {
+            assertTrue(decodedBounds[i] <= bounds[i]);
+            assertTrue(decodedBounds[i] >= bounds[i] - step);
+         } else {
+            assertTrue(decodedBounds[i] >= bounds[i]);
+            assertTrue(decodedBounds[i] <= bounds[i] + step);
+         }
+      }
+   }
+
+   @Test
+   public void shouldKeepObjectsTouchingTheBoundsOfTheirParents() {
+      // Given
+      AABBTree<TestEntity> tree = new AABBTree<>();
+      List<TestEntity> entities = new ArrayList<>();
+      // Far from the origin, where floats are coarse, with tiny objects that sit on the bounds of their parents.
+      for (int i = 0; i < 100; i++) {
+         TestEntity entity = new TestEntity(i + 1, 100000.0f + i * 37.3f, 100000.0f + (i % 7) * 0.03f, 0.01f, 0.01f);
+         entities.add(entity);
+         tree.add(entity);
+      }
+      tree.add(new TestEntity(1000, 99000.0f, 99000.0f, 5000.0f, 2000.0f));
+
+      // When
+      QuantizedAABBTree<TestEntity> quantizedTree = tree.toQuantizedTree();
+      float[] decodedBounds = new float[quantizedTree.getNodeCount() * QuantizedAABBTree.BOUNDS_STRIDE];
+      quantizedTree.decodeBounds(decodedBounds);
+
+      // Then
+      float[] rootBounds = tree.toFlatTree().getBounds();
+      for (int i = 0; i < QuantizedAABBTree.BOUNDS_STRIDE; i++) {
+         assertEquals(rootBounds[i], decodedBounds[i], 0.0f);
+      }
+      List<TestEntity> result = new ArrayList<>();
+      for (TestEntity entity : entities) {
+         AABBf fatAABB = tree.getFatAABB(entity);
+         quantizedTree.detectOverlaps(new AABBf(fatAABB.minX, fatAABB.minY, fatAABB.minZ,
+                                                fatAABB.minX, fatAABB.minY, fatAABB.minZ), result);
+         assertTrue(result.contains(entity));
+         quantizedTree.detectOverlaps(new AABBf(fatAABB.maxX, fatAABB.maxY, fatAABB.maxZ,
+                                                fatAABB.maxX, fatAABB.maxY, fatAABB.maxZ), result);
+         assertTrue(result.contains(entity));
+      }
+   }
+}
@@ -0,0 +1,115 @@
+package pl.pateman.dynamicaabbtree;
+
+import org.joml.AABBf;
+import org.joml.Matrix4f;
+import org.joml.Rayf;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class ShardedAABBTreeTest
+{
+   @Test
+   public void shouldDetectTheSameObjectsAsASingleTree() {
+      // Given
+      List<TestEntity> entities = TestEntities.givenRandomEntities(300);
+      AABBTree<TestEntity> tree = new AABBTree<>();
+      ShardedAABBTree<TestEntity> shardedTree = new ShardedAABBTree<>(4);
+      for (TestEntity entity : entities) {
+         tree.add(entity);
+         shardedTree.add(entity);
+      }
+      AABBf overlapWith = new AABBf(10.0f, 10.0f, 0.0f, 40.0f, 30.0f, 0.0f);
+      Rayf ray = new Rayf(0.0f, 0.0f, 0.0f, 1.0f, 1.0f, 0.0f);
+      Matrix4f worldViewProjection = new Matrix4f().ortho(0.0f, 50.0f, 0.0f, 50.0f, -1.0f, 1.0f);
+      List<TestEntity> expected = new ArrayList<>();
+      List<TestEntity> result = new ArrayList<>();
+
+      // When & Then
+      assertEquals(300, shardedTree.size());
+      tree.detectOverlaps(overlapWith, expected);
+      shardedTree.detectOverlaps(overlapWith, result);
+      assertFalse(expected.isEmpty());
+      TestEntities.assertSameEntities(expected, result);
+
+      tree.detectRayIntersection(ray, expected);
+      shardedTree.detectRayIntersection(ray, result);
+      assertFalse(expected.isEmpty());
+      TestEntities.assertSameEntities(expected, result);
+
+      tree.detectInFrustum(worldViewProjection, expected);
+      shardedTree.detectInFrustum(worldViewProjection, result);
+      assertFalse(expected.isEmpty());
+      TestEntities.assertSameEntities(expected, result);
+   }
+
+   @Test
+   public void shouldDetectCollisionPairsAcrossShards() {
+      // Given
+      List<TestEntity> entities = TestEntities.givenRandomEntities(300);
+      AABBTree<TestEntity> tree = new AABBTree<>();
+      ShardedAABBTree<TestEntity> shardedTree = new ShardedAABBTree<>(3);
+      for (TestEntity entity : entities) {
+         tree.add(entity);
+         shardedTree.add(entity);
+      }
+      List<CollisionPair<TestEntity>> expected = new ArrayList<>();
+      List<CollisionPair<TestEntity>> result = new ArrayList<>();
+
+      // When
+      tree.detectCollisionPairs(expected);
+      shardedTree.detectCollisionPairs(result);
+
+      // Then
+      assertFalse(expected.isEmpty());
+      assertEquals(expected.size(), result.size());
+      assertEquals(new HashSet<>(expected), new HashSet<>(result));
+   }
+
+   @Test
+   public void shouldModifyShardsFromManyThreads() throws Exception {
+      // Given
+      List<TestEntity> entities = TestEntities.givenRandomEntities(2000);
+      ShardedAABBTree<TestEntity> shardedTree = new ShardedAABBTree<>(8);
+      ExecutorService executor = Executors.newFixedThreadPool(4);
+
+      // When
+      List<Future<?>> tasks = new ArrayList<>();
+      try {
+         for (int thread = 0; thread < 4; thread++) {
+            int first = thread;
+            tasks.add(executor.submit(() -> {
+               for (int i = first; i < entities.size(); i += 4) {
+                  TestEntity entity = entities.get(i);
+                  shardedTree.add(entity);
+                  entity.setPosition(i % 100, i % 37);
+                  shardedTree.update(entity);
+                  if (i % 3 == 0) {
+                     shardedTree.remove(entity);
+                  }
+               }
+            }));
+         }
+         for (Future<?> task : tasks) {
+            task.get();
+         }
+      } finally {
+         executor.shutdown();
+      }
+
+      // Then
+      int expectedSize = 0;
+      for (int i = 0; i < entities.size(); i++) {
+         assertEquals(i % 3 != 0, shardedTree.contains(entities.get(i)));
+         expectedSize += i % 3 != 0 ? 1 : 0;
+      }
+      assertEquals(expectedSize, shardedTree.size());
+   }
+}
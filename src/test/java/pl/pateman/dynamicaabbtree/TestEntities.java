@@ -0,0 +1,56 @@
+package pl.pateman.dynamicaabbtree;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Fixtures shared by the tests of the tree and its copies.
+ */
+final class TestEntities
+{
+   private TestEntities() {
+   }
+
+   static AABBTree<TestEntity> givenRandomTree(int numberOfEntities) {
+      AABBTree<TestEntity> tree = new AABBTree<>();
+      for (TestEntity entity : givenRandomEntities(numberOfEntities)) {
+         tree.add(entity);
+      }
+      return tree;
+   }
+
+   /**
+    * Builds a random tree and puts its entities into the given map by their IDs.
+    */
+   static AABBTree<TestEntity> givenRandomTree(int numberOfEntities, Map<Long, TestEntity> entitiesByID) {
+      AABBTree<TestEntity> tree = new AABBTree<>();
+      for (TestEntity entity : givenRandomEntities(numberOfEntities)) {
+         entitiesByID.put(entity.getID(), entity);
+         tree.add(entity);
+      }
+      return tree;
+   }
+
+   static List<TestEntity> givenRandomEntities(int numberOfEntities) {
+      Random random = new Random(1234L);
+      List<TestEntity> entities = new ArrayList<>();
+      for (int i = 0; i < numberOfEntities; i++) {
+         entities.add(new TestEntity(i + 1, random.nextFloat() * 100.0f, random.nextFloat() * 100.0f,
+                                     1.0f + random.nextFloat() * 5.0f, 1.0f + random.nextFloat() * 5.0f));
+      }
+      return entities;
+   }
+
+   static void assertSameEntities(List<TestEntity> expected, List<TestEntity> actual) {
+      List<TestEntity> sortedExpected = new ArrayList<>(expected);
+      List<TestEntity> sortedActual = new ArrayList<>(actual);
+      sortedExpected.sort(Comparator.comparingLong(TestEntity::getID));
+      sortedActual.sort(Comparator.comparingLong(TestEntity::getID));
+      assertEquals(sortedExpected, sortedActual);
+   }
+}
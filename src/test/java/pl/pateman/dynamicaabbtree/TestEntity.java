@@ -5,9 +5,9 @@ import org.joml.AABBf;
 public class TestEntity implements Boundable, Identifiable
 {
 
-   private final float x;
+   private float x;
 
-   private final float y;
+   private float y;
 
    private final float width;
 
@@ -24,6 +24,12 @@ public class TestEntity implements Boundable, Identifiable
       this.height = height;
    }
 
+   void setPosition(float x, float y)
+   {
+      this.x = x;
+      this.y = y;
+   }
+
    @Override
    public AABBf getAABB(AABBf dest)
    {
@@ -0,0 +1,84 @@
+package pl.pateman.dynamicaabbtree;
+
+import org.joml.AABBf;
+import org.joml.Matrix4f;
+import org.joml.Rayf;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+import static pl.pateman.dynamicaabbtree.TestEntities.assertSameEntities;
+import static pl.pateman.dynamicaabbtree.TestEntities.givenRandomTree;
+import static pl.pateman.dynamicaabbtree.WideAABBTree.EMPTY_CHILD;
+import static pl.pateman.dynamicaabbtree.WideAABBTree.WIDTH;
+
+public class WideAABBTreeTest
+{
+   @Test
+   public void shouldReferenceEveryObjectOnceFromFullNodes() {
+      // Given
+      AABBTree<TestEntity> tree = givenRandomTree(200);
+
+      // When
+      WideAABBTree<TestEntity> wideTree = tree.toWideTree();
+
+      // Then
+      Set<Integer> referencedObjects = new HashSet<>();
+      int emptyLanes = 0;
+      for (int child : wideTree.getChildren()) {
+         if (child == EMPTY_CHILD) {
+            emptyLanes++;
+         } else if (child < 0) {
+            assertTrue(referencedObjects.add(~child));
+         }
+      }
+      assertEquals(200, referencedObjects.size());
+      assertTrue(wideTree.getNodeCount() < tree.getNodes().size() / 2);
+      assertTrue(emptyLanes < wideTree.getNodeCount() * WIDTH / 4);
+   }
+
+   @Test
+   public void shouldNeverVisitEmptyLanes() {
+      for (int objectCount = 1; objectCount < WIDTH; objectCount++) {
+         // Given
+         AABBTree<TestEntity> tree = new AABBTree<>();
+         List<TestEntity> entities = new ArrayList<>();
+         for (int i = 0; i < objectCount; i++) {
+            TestEntity entity = new TestEntity(i + 1, i * 10.0f, 0.0f, 2.0f, 2.0f);
+            entities.add(entity);
+            tree.add(entity);
+         }
+         WideAABBTree<TestEntity> wideTree = tree.toWideTree();
+
+         // When
+         List<TestEntity> overlaps = new ArrayList<>();
+         List<TestEntity> inFrustum = new ArrayList<>();
+         List<TestEntity> rayIntersections = new ArrayList<>();
+         // Infinite queries overlap even the inverted bounds of the empty lanes.
+         wideTree.detectOverlaps(new AABBf(Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY,
+                                           Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY),
+                                 overlaps);
+         wideTree.detectInFrustum(new Matrix4f().ortho(-10.0f, 40.0f, -10.0f, 10.0f, -1.0f, 1.0f), inFrustum);
+         wideTree.detectRayIntersection(new Rayf(-10.0f, 1.0f, 0.0f, 1.0f, 0.0f, 0.0f), rayIntersections);
+
+         // Then
+         assertEquals(1, wideTree.getNodeCount());
+         int emptyLanes = 0;
+         for (int lane = 0; lane < WIDTH; lane++) {
+            if (wideTree.getChildren()[lane] == EMPTY_CHILD) {
+               emptyLanes++;
+               assertEquals(Float.POSITIVE_INFINITY, wideTree.getBounds()[lane], 0.0f);
+               assertEquals(Float.NEGATIVE_INFINITY, wideTree.getBounds()[3 * WIDTH + lane], 0.0f);
+            }
+         }
+         assertEquals(WIDTH - objectCount, emptyLanes);
+         assertSameEntities(entities, overlaps);
+         assertSameEntities(entities, inFrustum);
+         assertSameEntities(entities, rayIntersections);
+      }
+   }
+}